@@ -0,0 +1,93 @@
+package org.jenkinsci.plugins.sma;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of the Apex class names in a source tree, built from tree entries only; no blob is ever opened. A file is
+ * an Apex class when SMAMetadataTypes registers its extension as ApexClass, whatever directory it is in. Results
+ * are cached per tree id for every directory visited, so a later commit only reads the trees that changed.
+ *
+ */
+public final class SMAApexClassIndex {
+    private static final String APEXCLASS = "ApexClass";
+    private static final int MAX_TREES = 8192;
+
+    private static final Map<ObjectId, Set<String>> TREES = new LinkedHashMap<ObjectId, Set<String>>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ObjectId, Set<String>> eldest) {
+            return size() > MAX_TREES;
+        }
+    };
+
+    private SMAApexClassIndex() {}
+
+    /**
+     * Returns the names of all Apex classes below the given source tree. The returned set must not be modified.
+     *
+     * @param reader
+     * @param sourceTree
+     * @return
+     * @throws Exception
+     */
+    public static Set<String> getClassNames(ObjectReader reader, AnyObjectId sourceTree) throws Exception {
+        return index(reader, sourceTree, SMAMetadataTypes.getDefault());
+    }
+
+    /**
+     * Returns the number of trees currently cached.
+     *
+     * @return
+     */
+    public static synchronized int size() {
+        return TREES.size();
+    }
+
+    /**
+     * Empties the cache.
+     */
+    public static synchronized void clear() {
+        TREES.clear();
+    }
+
+    private static Set<String> index(ObjectReader reader, AnyObjectId tree, SMAMetadataTypes types) throws Exception {
+        Set<String> names;
+
+        synchronized (SMAApexClassIndex.class) {
+            names = TREES.get(tree);
+        }
+        if (null != names) {
+            return names;
+        }
+        names = new HashSet<String>();
+
+        for (CanonicalTreeParser entries = new CanonicalTreeParser(null, reader, tree); !entries.eof(); entries.next(1)) {
+            String name = entries.getEntryPathString();
+
+            if (FileMode.TREE.equals(entries.getEntryRawMode())) {
+                names.addAll(index(reader, entries.getEntryObjectId(), types));
+            } else {
+                SMAMetadataType type = types.lookupFileType(name);
+
+                if (null != type && APEXCLASS.equals(type.getMetadataType())) {
+                    names.add(name.substring(0, name.length() - type.getExtension().length() - 1));
+                }
+            }
+        }
+        names = names.isEmpty() ? Collections.<String>emptySet() : Collections.unmodifiableSet(names);
+
+        synchronized (SMAApexClassIndex.class) {
+            TREES.put(tree.copy(), names);
+        }
+        return names;
+    }
+}
@@ -0,0 +1,156 @@
+package org.jenkinsci.plugins.sma;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lightweight lexical scanner for Apex classes and triggers. It does not parse Apex; it drops comments and string
+ * literals and collects the identifiers that are left, which is enough to tell which other classes and sObjects a
+ * unit refers to. Apex is case insensitive, so identifiers are lower cased.
+ *
+ */
+public final class SMAApexScanner {
+    private static final int MAX_SCANS = 20000;
+
+    private static final Map<ObjectId, Result> SCANS = new LinkedHashMap<ObjectId, Result>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ObjectId, Result> eldest) {
+            return size() > MAX_SCANS;
+        }
+    };
+
+    private SMAApexScanner() {}
+
+    /**
+     * Scans the blob with the given id. Results are cached by blob id, so unchanged files are only scanned once
+     * per process.
+     *
+     * @param git
+     * @param blobId
+     * @return
+     * @throws Exception
+     */
+    public static Result scan(SMAGit git, ObjectId blobId) throws Exception {
+        Result result;
+
+        synchronized (SCANS) {
+            result = SCANS.get(blobId);
+        }
+        if (null == result) {
+            result = scan(new String(git.getBlob(blobId), "UTF-8"));
+
+            synchronized (SCANS) {
+                SCANS.put(blobId.copy(), result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Scans Apex source code
+     *
+     * @param source
+     * @return
+     */
+    public static Result scan(String source) {
+        Set<String> identifiers = new HashSet<String>();
+        String[] header = new String[4];
+        int headerCount = 0;
+        boolean test = false;
+        boolean annotation = false;
+        int length = source.length();
+        int i = 0;
+
+        while (i < length) {
+            char c = source.charAt(i);
+
+            if (c == '/' && i + 1 < length && source.charAt(i + 1) == '/') {
+                i = source.indexOf('\n', i);
+                i = i < 0 ? length : i;
+            } else if (c == '/' && i + 1 < length && source.charAt(i + 1) == '*') {
+                i = source.indexOf("*/", i + 2);
+                i = i < 0 ? length : i + 2;
+            } else if (c == '\'') {
+                for (i++; i < length && source.charAt(i) != '\''; i++) {
+                    if (source.charAt(i) == '\\') { i++; }
+                }
+                i++;
+            } else if (c == '@') {
+                annotation = true;
+                i++;
+            } else if (Character.isJavaIdentifierStart(c)) {
+                int start = i;
+                while (i < length && Character.isJavaIdentifierPart(source.charAt(i))) { i++; }
+                String identifier = source.substring(start, i).toLowerCase(Locale.ROOT);
+
+                if (annotation && identifier.equals("istest") || identifier.equals("testmethod")) {
+                    test = true;
+                }
+                if (headerCount < header.length) {
+                    header[headerCount++] = identifier;
+                }
+                identifiers.add(identifier);
+                annotation = false;
+            } else {
+                if (!Character.isWhitespace(c)) { annotation = false; }
+                i++;
+            }
+        }
+        String triggerObject = null;
+        if (headerCount == header.length && header[0].equals("trigger") && header[2].equals("on")) {
+            triggerObject = header[3];
+        }
+        return new Result(identifiers, test, triggerObject);
+    }
+
+    /**
+     * Clears the cache of scanned blobs.
+     */
+    public static void clear() {
+        synchronized (SCANS) {
+            SCANS.clear();
+        }
+    }
+
+    /**
+     * Outcome of scanning one class or trigger
+     */
+    public static final class Result {
+        private final Set<String> identifiers;
+        private final boolean test;
+        private final String triggerObject;
+
+        private Result(Set<String> identifiers, boolean test, String triggerObject) {
+            this.identifiers = Collections.unmodifiableSet(identifiers);
+            this.test = test;
+            this.triggerObject = triggerObject;
+        }
+
+        /**
+         * Returns the lower cased identifiers found outside of comments and strings.
+         *
+         * @return
+         */
+        public Set<String> getIdentifiers() { return identifiers; }
+
+        /**
+         * Returns whether the unit is a test, i.e. is annotated with @isTest or declares testMethods.
+         *
+         * @return
+         */
+        public boolean isTest() { return test; }
+
+        /**
+         * Returns the lower cased sObject a trigger is defined on, or null if the unit is not a trigger.
+         *
+         * @return
+         */
+        public String getTriggerObject() { return triggerObject; }
+    }
+}
@@ -0,0 +1,74 @@
+package org.jenkinsci.plugins.sma;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/**
+ * Handle to the content of a repository file. Git backed blobs only keep the ObjectId and the SMAGit they came from;
+ * the content is read when it is streamed into a package.
+ *
+ */
+public class SMABlob {
+    private final SMAGit source;
+    private final ObjectId id;
+    private final byte[] data;
+
+    /**
+     * Constructor for content that is already in memory
+     *
+     * @param data
+     */
+    public SMABlob(byte[] data) {
+        this.source = null;
+        this.id = null;
+        this.data = data;
+    }
+
+    /**
+     * Constructor for content stored in a git repository
+     *
+     * @param source
+     * @param id
+     */
+    public SMABlob(SMAGit source, ObjectId id) {
+        this.source = source;
+        this.id = id;
+        this.data = null;
+    }
+
+    /**
+     * Returns the ObjectId of the blob, or null if the content is held in memory.
+     *
+     * @return id
+     */
+    public ObjectId getId() { return id; }
+
+    /**
+     * Returns the SMAGit the blob is read from, or null if the content is held in memory.
+     *
+     * @return source
+     */
+    public SMAGit getSource() { return source; }
+
+    /**
+     * Reads the whole content of the blob.
+     *
+     * @return data
+     * @throws Exception
+     */
+    public byte[] getBytes() throws Exception {
+        return null == source ? data : source.getBlob(id);
+    }
+
+    /**
+     * Opens a stream over the content of the blob. The caller must close it.
+     *
+     * @return InputStream
+     * @throws Exception
+     */
+    public InputStream openStream() throws Exception {
+        return null == source ? new ByteArrayInputStream(data) : source.openBlob(id);
+    }
+}
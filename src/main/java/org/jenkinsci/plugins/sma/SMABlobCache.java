@@ -0,0 +1,81 @@
+package org.jenkinsci.plugins.sma;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process wide LRU cache of inflated blob contents keyed by ObjectId and bounded by their total size. Since a blob
+ * id is the hash of its content, entries can be shared between repositories. Cached arrays are shared and must
+ * not be modified.
+ *
+ */
+public final class SMABlobCache {
+    private static final long MAX_BYTES = 64L * 1024 * 1024;
+    private static final int MAX_ENTRY_BYTES = 1024 * 1024;
+
+    private static final LinkedHashMap<ObjectId, byte[]> BLOBS = new LinkedHashMap<ObjectId, byte[]>(256, 0.75f, true);
+    private static long size = 0;
+
+    private SMABlobCache() {}
+
+    /**
+     * Returns the cached content of a blob, or null if it is not cached.
+     *
+     * @param id
+     * @return
+     */
+    public static synchronized byte[] get(AnyObjectId id) {
+        return BLOBS.get(id);
+    }
+
+    /**
+     * Caches the content of a blob, evicting the least recently used blobs past the size bound. Blobs larger than
+     * the per entry limit are not cached.
+     *
+     * @param id
+     * @param data
+     */
+    public static synchronized void put(AnyObjectId id, byte[] data) {
+        if (!isCacheable(data.length) || BLOBS.containsKey(id)) {
+            return;
+        }
+        BLOBS.put(id.copy(), data);
+        size += data.length;
+
+        for (Iterator<Map.Entry<ObjectId, byte[]>> it = BLOBS.entrySet().iterator(); size > MAX_BYTES && it.hasNext(); ) {
+            size -= it.next().getValue().length;
+            it.remove();
+        }
+    }
+
+    /**
+     * Returns whether a blob of the given size would be kept by the cache.
+     *
+     * @param length
+     * @return
+     */
+    public static boolean isCacheable(long length) {
+        return length <= MAX_ENTRY_BYTES;
+    }
+
+    /**
+     * Returns the total size of the cached blobs in bytes.
+     *
+     * @return
+     */
+    public static synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Empties the cache.
+     */
+    public static synchronized void clear() {
+        BLOBS.clear();
+        size = 0;
+    }
+}
@@ -0,0 +1,161 @@
+package org.jenkinsci.plugins.sma;
+
+import org.eclipse.jgit.lib.ObjectReader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Inflates blob contents on a bounded pool of worker threads. Each worker opens its own ObjectReader on the
+ * repository a blob comes from, since readers cannot be shared between threads. Results are handed back in the
+ * order the blobs were given, and only a small window of them is held in memory at any time. Blobs too large to
+ * hold in memory are not loaded ahead; they are left to be streamed by the caller.
+ *
+ */
+public class SMABlobLoader implements Closeable {
+    private final int threads;
+    private final ExecutorService pool;
+    private final List<ObjectReader> readers = Collections.synchronizedList(new ArrayList<ObjectReader>());
+    private final ThreadLocal<Map<SMAGit, ObjectReader>> workerReaders = new ThreadLocal<Map<SMAGit, ObjectReader>>() {
+        @Override
+        protected Map<SMAGit, ObjectReader> initialValue() {
+            return new HashMap<SMAGit, ObjectReader>();
+        }
+    };
+
+    /**
+     * Creates a loader backed by the given number of worker threads
+     *
+     * @param threads
+     */
+    public SMABlobLoader(int threads) {
+        this.threads = Math.max(1, threads);
+        this.pool = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread worker = new Thread(runnable, "SMA blob loader " + count.incrementAndGet());
+                worker.setDaemon(true);
+                return worker;
+            }
+        });
+    }
+
+    /**
+     * Starts loading the given blobs. The returned batch yields their contents in the same order.
+     *
+     * @param blobs
+     * @return Batch
+     */
+    public Batch load(List<SMABlob> blobs) {
+        return new Batch(blobs);
+    }
+
+    /**
+     * Stops the workers and releases their readers.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        pool.shutdownNow();
+        try {
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (readers) {
+            for (ObjectReader reader : readers) {
+                reader.close();
+            }
+            readers.clear();
+        }
+    }
+
+    /**
+     * Reads a blob on the current worker, opening the worker's reader for its repository if needed. Returns null
+     * for git blobs too large to hold in memory.
+     *
+     * @param blob
+     * @return
+     * @throws Exception
+     */
+    private byte[] read(SMABlob blob) throws Exception {
+        SMAGit source = blob.getSource();
+
+        if (null == source) {
+            return blob.getBytes();
+        }
+        Map<SMAGit, ObjectReader> mine = workerReaders.get();
+        ObjectReader reader = mine.get(source);
+
+        if (null == reader) {
+            reader = source.newObjectReader();
+            mine.put(source, reader);
+            readers.add(reader);
+        }
+        return source.getSmallBlob(reader, blob.getId());
+    }
+
+    /**
+     * Ordered view over the contents of a list of blobs. At most a few blobs per worker are loaded ahead of the
+     * one being consumed.
+     */
+    public class Batch {
+        private final List<SMABlob> blobs;
+        private final Deque<Future<byte[]>> window = new ArrayDeque<Future<byte[]>>();
+        private int submitted = 0;
+
+        private Batch(List<SMABlob> blobs) {
+            this.blobs = blobs;
+            fill();
+        }
+
+        /**
+         * Returns whether there are blobs left in this batch.
+         *
+         * @return
+         */
+        public boolean hasNext() {
+            return !window.isEmpty();
+        }
+
+        /**
+         * Returns the content of the next blob, waiting for it to be loaded if needed. Returns null if the blob is
+         * too large to load ahead; the caller streams it with SMABlob.openStream instead.
+         *
+         * @return
+         * @throws Exception
+         */
+        public byte[] next() throws Exception {
+            Future<byte[]> head = window.poll();
+
+            if (null == head) {
+                throw new NoSuchElementException();
+            }
+            fill();
+            try {
+                return head.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        private void fill() {
+            while (submitted < blobs.size() && window.size() < threads * 2) {
+                final SMABlob blob = blobs.get(submitted++);
+
+                window.add(pool.submit(new Callable<byte[]>() {
+                    public byte[] call() throws Exception {
+                        return read(blob);
+                    }
+                }));
+            }
+        }
+    }
+}
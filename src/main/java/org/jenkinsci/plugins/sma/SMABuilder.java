@@ -7,12 +7,15 @@ import hudson.model.*;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
 
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 import com.sforce.soap.metadata.TestLevel;
 import net.sf.json.JSONObject;
@@ -31,6 +34,9 @@ public class SMABuilder extends Builder {
     private String runTestRegex;
     private String runTestManifest;
     private boolean useCustomSettings;
+    private boolean runTestDependencies;
+    private boolean skipUnchangedPackage;
+    private String sourceRoot;
 
     @DataBoundConstructor
     public SMABuilder(Boolean validateEnabled,
@@ -42,7 +48,10 @@ public class SMABuilder extends Builder {
                       String prTargetBranch,
                       String runTestRegex,
                       String runTestManifest,
-                      Boolean useCustomSettings
+                      Boolean useCustomSettings,
+                      Boolean runTestDependencies,
+                      Boolean skipUnchangedPackage,
+                      String sourceRoot
     ) {
         this.username = username;
         this.password = password;
@@ -54,6 +63,9 @@ public class SMABuilder extends Builder {
         this.runTestRegex = runTestRegex;
         this.runTestManifest = runTestManifest;
         this.useCustomSettings = useCustomSettings;
+        this.runTestDependencies = null != runTestDependencies && runTestDependencies;
+        this.skipUnchangedPackage = null != skipUnchangedPackage && skipUnchangedPackage;
+        this.sourceRoot = sourceRoot;
     }
 
     @Override
@@ -63,32 +75,40 @@ public class SMABuilder extends Builder {
 
         PrintStream writeToConsole = listener.getLogger();
         List<ParameterValue> parameterValues = new ArrayList<ParameterValue>();
+        SMARunner currentJob = null;
+        SMAZip deploymentPackage = null;
 
         try {
-            // Initialize the connection to Salesforce for this job
-            SMAConnection sfConnection = new SMAConnection(
-                    getUsername(),
-                    getPassword(),
-                    getSecurityToken(),
-                    getServerType(),
-                    getDescriptor().getPollWait(),
-                    getDescriptor().getMaxPoll(),
-                    getDescriptor().getProxyServer(),
-                    getDescriptor().getProxyUser(),
-                    getDescriptor().getProxyPass(),
-                    getDescriptor().getProxyPort()
-            );
-
-            // Initialize the runner for this job
+            // Org custom settings are read from the org, so only then log in before the package is built
+            SMAConnection sfConnection = null;
             SMAJenkinsCIOrgSettings orgSettings = null;
             if (getUseCustomSettings()) {
+                sfConnection = createConnection();
                 orgSettings = SMAJenkinsCIOrgSettings.getInstance(sfConnection);
                 writeToConsole.println("[SMA] Using Custom Settings on Org. Current settings: ");
                 writeToConsole.println("- Git SHA1: " + orgSettings.getGitSha1());
                 writeToConsole.println();
             }
+
+            // Initialize the runner for this job
             EnvVars jobVariables = build.getEnvironment(listener);
-            SMARunner currentJob = new SMARunner(jobVariables, getPrTargetBranch(), orgSettings);
+            getDescriptor().applyRepositoryCacheSettings();
+            getDescriptor().applyPackCacheSettings();
+            SMADeployLedger ledger = getDeployLedger(build);
+            currentJob = new SMARunner(
+                    jobVariables,
+                    getPrTargetBranch(),
+                    orgSettings,
+                    getDescriptor().getRenameScore(),
+                    ledger,
+                    getSourceRoot()
+            );
+            if (currentJob.getUsesLedger()) {
+                writeToConsole.println("[SMA] Comparing against the metadata this job last deployed to this org");
+                if (getUseCustomSettings()) {
+                    writeToConsole.println("[SMA] The Git SHA1 of the org custom settings is not used while this job has a deployed state");
+                }
+            }
 
             // Build the package and destructiveChanges manifests
             SMAPackage packageXml = new SMAPackage(currentJob.getPackageMembers(), false);
@@ -103,61 +123,147 @@ public class SMABuilder extends Builder {
                 SMAUtility.printMetadataToConsole(listener, destructiveChanges.getContents());
             }
             // Build the zipped deployment package
-            ByteArrayOutputStream deploymentPackage = SMAUtility.zipPackage(
+            deploymentPackage = SMAUtility.zipPackage(
                     currentJob.getDeploymentData(),
                     packageXml,
-                    destructiveChanges
+                    destructiveChanges,
+                    getDescriptor().getLoaderThreads(),
+                    getDescriptor().getCompressionLevel()
             );
-
-            // Deploy to the server
-            String[] specifiedTests = null;
-            TestLevel testLevel = TestLevel.valueOf(getTestLevel());
-
-            if (testLevel.equals(TestLevel.RunSpecifiedTests)) {
-                specifiedTests = currentJob.getSpecifiedTests(this);
-
-                writeToConsole.println("[SMA] Specified Apex tests to run:");
-                for (String testName : specifiedTests) {
-                    writeToConsole.println("- " + testName);
+            writeToConsole.println("[SMA] Packaged " + deploymentPackage.getStatistics());
+
+            String packageHash = deploymentPackage.getHash();
+            parameterValues.add(new StringParameterValue("smaPackageHash", packageHash));
+            writeToConsole.println("[SMA] Package hash: " + packageHash);
+
+            // An overridden previous commit asks for that delta to be deployed, so it is never skipped
+            boolean emptyDelta = !currentJob.getDeployAll() && currentJob.getPackageMembers().isEmpty()
+                    && destructiveChanges.getContents().isEmpty();
+            boolean unchangedPackage = null != ledger && packageHash.equals(ledger.getPackageHash());
+
+            if (getSkipUnchangedPackage() && !getValidateEnabled() && !currentJob.getShaOverride()
+                    && (emptyDelta || unchangedPackage)) {
+                if (emptyDelta) {
+                    writeToConsole.println("[SMA] No metadata changed since the last deployment, skipping deployment");
+                    smaDeployResult = "[SMA] Deployment Skipped, no changes";
+                } else {
+                    writeToConsole.println("[SMA] This package was the last one deployed to the org, skipping deployment");
+                    writeToConsole.println("[SMA] This assumes the org was not changed outside of SMA since");
+                    smaDeployResult = "[SMA] Deployment Skipped, package unchanged";
                 }
-                writeToConsole.println("");
-            }
+                JOB_SUCCESS = true;
+            } else {
+                final TestLevel testLevel = TestLevel.valueOf(getTestLevel());
+                String validationId = null;
 
-            JOB_SUCCESS = sfConnection.deployToServer(
-                    deploymentPackage,
-                    testLevel,
-                    specifiedTests,
-                    getValidateEnabled(),
-                    packageXml.containsApex()
-            );
-            if (JOB_SUCCESS) {
-                if (!testLevel.equals(TestLevel.NoTestRun)) {
-                    smaDeployResult = sfConnection.getCodeCoverage();
+                if (!getValidateEnabled() && null != ledger) {
+                    validationId = ledger.getValidation(packageHash, testLevel.name());
+                }
+                if (null == sfConnection) {
+                    sfConnection = createConnection();
                 }
-                smaDeployResult += "\n[SMA] " + (getValidateEnabled() ? "Validation" : "Deployment") + " Succeeded";
+                final SMAConnection connection = sfConnection;
+                final SMARunner job = currentJob;
+                final SMAZip zip = deploymentPackage;
+                final boolean containsApex = packageXml.containsApex();
+                final PrintStream console = writeToConsole;
+                final String recentValidation = validationId;
+
+                // Reuse a recent validation of this package, so its tests do not run again
+                SMAQuickDeploy quickDeploy = new SMAQuickDeploy(ledger, writeToConsole);
+                JOB_SUCCESS = quickDeploy.deploy(validationId, new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        boolean deployed = connection.deployRecentValidation(recentValidation);
+                        if (!deployed) {
+                            console.println("[SMA] Validation " + recentValidation + " can not be quick deployed: " + connection.getErrorMessage());
+                        }
+                        return deployed;
+                    }
+                }, new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        // Deploy to the server
+                        String[] specifiedTests = null;
+
+                        if (testLevel.equals(TestLevel.RunSpecifiedTests)) {
+                            specifiedTests = job.getSpecifiedTests(SMABuilder.this);
+
+                            console.println("[SMA] Specified Apex tests to run:");
+                            for (String testName : specifiedTests) {
+                                console.println("- " + testName);
+                            }
+                            console.println("");
+                        }
+
+                        return connection.deployToServer(
+                                zip,
+                                testLevel,
+                                specifiedTests,
+                                getValidateEnabled(),
+                                containsApex
+                        );
+                    }
+                });
+                boolean quickDeployed = quickDeploy.getQuickDeployed();
+                boolean ranTests = !quickDeployed && !testLevel.equals(TestLevel.NoTestRun);
 
-                if (!getValidateEnabled()) {
-                    if (!currentJob.getDeployAll()) {
-                        createRollbackPackageZip(currentJob);
+                if (JOB_SUCCESS) {
+                    if (ranTests) {
+                        smaDeployResult = sfConnection.getCodeCoverage();
                     }
-                    if (getUseCustomSettings()) {
-                        orgSettings.setGitSha1(currentJob.getCurrentCommit());
-                        orgSettings.setJenkinsJobName(jobVariables.get("JOB_NAME"));
-                        orgSettings.setJenkinsBuildNumber(jobVariables.get("BUILD_NUMBER"));
-                        orgSettings.save();
+                    smaDeployResult += "\n[SMA] " + (getValidateEnabled() ? "Validation" : "Deployment") + " Succeeded";
+
+                    if (getValidateEnabled() && null != ledger) {
+                        ledger.recordValidation(packageHash, testLevel.name(), sfConnection.getAsyncResultId());
                     }
-                    writeToConsole.println("Setting GitSha1 to: " + currentJob.getCurrentCommit());
-                }
-            } else {
-                smaDeployResult = sfConnection.getComponentFailures();
+                    if (!getValidateEnabled()) {
+                        // Record what the org now holds first, a failed rollback package must not lose it
+                        currentJob.recordDeployment();
+                        if (null != ledger) {
+                            ledger.recordPackageHash(packageHash);
+                            ledger.clearValidation();
+                        }
+                        if (getUseCustomSettings()) {
+                            orgSettings.setGitSha1(currentJob.getCurrentCommit());
+                            orgSettings.setJenkinsJobName(jobVariables.get("JOB_NAME"));
+                            orgSettings.setJenkinsBuildNumber(jobVariables.get("BUILD_NUMBER"));
+                            orgSettings.save();
+                        }
+                        writeToConsole.println("Setting GitSha1 to: " + currentJob.getCurrentCommit());
+
+                        if (!currentJob.getDeployAll()) {
+                            try {
+                                createRollbackPackageZip(currentJob);
+                            } catch (Exception e) {
+                                writeToConsole.println("[SMA] Warning: the rollback package could not be created: " + e);
+                            }
+                        }
+                    }
+                } else {
+                    smaDeployResult = sfConnection.getComponentFailures();
 
-                if (!testLevel.equals(TestLevel.NoTestRun)) {
-                    smaDeployResult += sfConnection.getTestFailures() + sfConnection.getCodeCoverageWarnings();
+                    if (ranTests) {
+                        smaDeployResult += sfConnection.getTestFailures() + sfConnection.getCodeCoverageWarnings();
+                    }
+                    smaDeployResult += "\n[SMA] " + (getValidateEnabled() ? "Validation" : "Deployment") + " Failed";
                 }
-                smaDeployResult += "\n[SMA] " + (getValidateEnabled() ? "Validation" : "Deployment") + " Failed";
             }
         } catch (Exception e) {
             e.printStackTrace(writeToConsole);
+        } finally {
+            if (null != deploymentPackage) {
+                deploymentPackage.close();
+            }
+            if (null != currentJob) {
+                writeToConsole.println("[SMA] " + currentJob.getCacheStatistics());
+                writeToConsole.println("[SMA] " + SMAWindowCache.getStatistics());
+                try {
+                    currentJob.close();
+                } catch (IOException e) {
+                    e.printStackTrace(writeToConsole);
+                }
+            }
         }
         parameterValues.add(new StringParameterValue("smaDeployResult", smaDeployResult));
         build.addAction(new ParametersAction(parameterValues));
@@ -166,16 +272,48 @@ public class SMABuilder extends Builder {
         return JOB_SUCCESS;
     }
 
+    private SMAConnection createConnection() throws Exception {
+        return new SMAConnection(
+                getUsername(),
+                getPassword(),
+                getSecurityToken(),
+                getServerType(),
+                getDescriptor().getPollWait(),
+                getDescriptor().getMaxPoll(),
+                getDescriptor().getProxyServer(),
+                getDescriptor().getProxyUser(),
+                getDescriptor().getProxyPass(),
+                getDescriptor().getProxyPort()
+        );
+    }
+
     private void createRollbackPackageZip(SMARunner currentJob) throws Exception {
         SMAPackage rollbackPackageXml = new SMAPackage(currentJob.getRollbackMetadata(), false);
         SMAPackage rollbackDestructiveXml = new SMAPackage(currentJob.getRollbackAdditions(), true);
 
-        ByteArrayOutputStream rollbackPackage = SMAUtility.zipPackage(
+        SMAZip rollbackPackage = SMAUtility.zipPackage(
                 currentJob.getRollbackData(),
                 rollbackPackageXml,
-                rollbackDestructiveXml
+                rollbackDestructiveXml,
+                getDescriptor().getLoaderThreads(),
+                getDescriptor().getCompressionLevel()
+        );
+        try {
+            SMAUtility.writeZip(rollbackPackage, currentJob.getRollbackLocation());
+        } finally {
+            rollbackPackage.close();
+        }
+    }
+
+    private SMADeployLedger getDeployLedger(AbstractBuild build) {
+        Jenkins jenkins = Jenkins.getInstance();
+
+        return null == jenkins ? null : SMADeployLedger.forJob(
+                jenkins.getRootDir(),
+                getUsername(),
+                getServerType(),
+                build.getProject().getFullName()
         );
-        SMAUtility.writeZip(rollbackPackage, currentJob.getRollbackLocation());
     }
 
     private SMAPackage buildDestructiveChangesPackage(SMARunner currentJob) throws Exception {
@@ -206,6 +344,12 @@ public class SMABuilder extends Builder {
 
     public Boolean getUseCustomSettings() { return useCustomSettings; }
 
+    public boolean getRunTestDependencies() { return runTestDependencies; }
+
+    public boolean getSkipUnchangedPackage() { return skipUnchangedPackage; }
+
+    public String getSourceRoot() { return sourceRoot; }
+
     @Override
     public DescriptorImpl getDescriptor() { return (DescriptorImpl) super.getDescriptor(); }
 
@@ -218,6 +362,16 @@ public class SMABuilder extends Builder {
         private String proxyUser = "";
         private String proxyPass = "";
         private Integer proxyPort = 0;
+        private Integer loaderThreads = 1;
+        private Integer compressionLevel = 6;
+        private Integer repositoryIdleMinutes = 10;
+        private String renameThreshold = "";
+        private Boolean tunePackCache = false;
+        private Boolean packedGitMMAP = false;
+        private Integer packedGitWindowSize = 8;
+        private Integer packedGitOpenFiles = 128;
+        private Integer deltaBaseCacheLimit = 10;
+        private Integer packedGitLimit = 10;
 
 
         public DescriptorImpl() {
@@ -245,6 +399,70 @@ public class SMABuilder extends Builder {
 
         public Integer getProxyPort() { return proxyPort; }
 
+        public String getRenameThreshold() { return renameThreshold; }
+
+        /**
+         * Returns the rename threshold as a similarity score between 0 and 100, or null if rename detection is off.
+         *
+         * @return
+         */
+        public Integer getRenameScore() {
+            if (null == renameThreshold || renameThreshold.trim().isEmpty()) {
+                return null;
+            }
+            try {
+                return Math.max(0, Math.min(100, Integer.parseInt(renameThreshold.trim())));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        public Integer getLoaderThreads() { return null == loaderThreads || loaderThreads < 1 ? 1 : loaderThreads; }
+
+        public Integer getCompressionLevel() {
+            return null == compressionLevel ? 6 : Math.max(0, Math.min(9, compressionLevel));
+        }
+
+        public Integer getRepositoryIdleMinutes() {
+            return null == repositoryIdleMinutes ? 10 : Math.max(0, repositoryIdleMinutes);
+        }
+
+        public Boolean getTunePackCache() { return null != tunePackCache && tunePackCache; }
+
+        public Boolean getPackedGitMMAP() { return null != packedGitMMAP && packedGitMMAP; }
+
+        public Integer getPackedGitWindowSize() { return packedGitWindowSize; }
+
+        public Integer getPackedGitOpenFiles() { return packedGitOpenFiles; }
+
+        public Integer getDeltaBaseCacheLimit() { return deltaBaseCacheLimit; }
+
+        public Integer getPackedGitLimit() { return packedGitLimit; }
+
+        /**
+         * Installs the tuned pack window cache settings if enabled, and the JGit defaults once they are disabled.
+         */
+        public void applyPackCacheSettings() {
+            if (getTunePackCache()) {
+                SMAWindowCache.configure(
+                        getPackedGitMMAP(),
+                        getPackedGitWindowSize(),
+                        getPackedGitOpenFiles(),
+                        getDeltaBaseCacheLimit(),
+                        getPackedGitLimit()
+                );
+            } else {
+                SMAWindowCache.reset();
+            }
+        }
+
+        /**
+         * Sets how long the repositories of finished builds are kept open.
+         */
+        public void applyRepositoryCacheSettings() {
+            SMARepositoryCache.setIdleTimeout(TimeUnit.MINUTES.toMillis(getRepositoryIdleMinutes()));
+        }
+
         public ListBoxModel doFillServerTypeItems() {
             return new ListBoxModel(
                     new ListBoxModel.Option("Production (https://login.salesforce.com)", "https://login.salesforce.com"),
@@ -268,8 +486,20 @@ public class SMABuilder extends Builder {
             proxyUser = formData.getString("proxyUser");
             proxyPass = formData.getString("proxyPass");
             proxyPort = formData.optInt("proxyPort");
+            loaderThreads = formData.optInt("loaderThreads", 1);
+            compressionLevel = formData.optInt("compressionLevel", 6);
+            repositoryIdleMinutes = formData.optInt("repositoryIdleMinutes", 10);
+            renameThreshold = formData.optString("renameThreshold");
+            tunePackCache = formData.optBoolean("tunePackCache");
+            packedGitMMAP = formData.optBoolean("packedGitMMAP");
+            packedGitWindowSize = formData.optInt("packedGitWindowSize", 8);
+            packedGitOpenFiles = formData.optInt("packedGitOpenFiles", 128);
+            deltaBaseCacheLimit = formData.optInt("deltaBaseCacheLimit", 10);
+            packedGitLimit = formData.optInt("packedGitLimit", 10);
 
             save();
+            applyRepositoryCacheSettings();
+            applyPackCacheSettings();
             return false;
         }
     }
@@ -0,0 +1,170 @@
+package org.jenkinsci.plugins.sma;
+
+import java.util.*;
+
+/**
+ * Matches class names against a set of glob patterns, where '*' stands for any run of characters and '?' for
+ * exactly one. All patterns are compiled into a single automaton whose deterministic states are built lazily as
+ * names are matched, so matching a name costs one table lookup per character however many patterns there are.
+ *
+ */
+public class SMAClassPatternMatcher {
+    private static final int MAX_STATES = 10000;
+    private static final char ANY = '*';
+    private static final char ONE = '?';
+
+    private final char[][] patterns;
+    private final List<Set<String>> patternTests;
+    private final int[] offsets;
+
+    private final List<BitSet> states = new ArrayList<BitSet>();
+    private final Map<BitSet, Integer> stateIds = new HashMap<BitSet, Integer>();
+    private final List<Map<Character, Integer>> transitions = new ArrayList<Map<Character, Integer>>();
+    private final List<Set<String>> accepted = new ArrayList<Set<String>>();
+
+    /**
+     * Compiles the given patterns
+     *
+     * @param patternMapping The test classes to run for each pattern
+     */
+    public SMAClassPatternMatcher(Map<String, Set<String>> patternMapping) {
+        int count = patternMapping.size();
+        this.patterns = new char[count][];
+        this.patternTests = new ArrayList<Set<String>>(count);
+        this.offsets = new int[count + 1];
+
+        int i = 0;
+        for (Map.Entry<String, Set<String>> entry : patternMapping.entrySet()) {
+            patterns[i] = entry.getKey().toCharArray();
+            patternTests.add(entry.getValue());
+            offsets[i + 1] = offsets[i] + patterns[i].length + 1;
+            i++;
+        }
+        reset();
+    }
+
+    /**
+     * Returns whether a class entry is a pattern rather than a class name
+     *
+     * @param className
+     * @return
+     */
+    public static boolean isPattern(String className) {
+        return className.indexOf(ANY) >= 0 || className.indexOf(ONE) >= 0;
+    }
+
+    /**
+     * Returns the test classes of every pattern matching the given class name
+     *
+     * @param className
+     * @return
+     */
+    public synchronized Set<String> getTests(String className) {
+        int state = 0;
+
+        for (int i = 0; i < className.length(); i++) {
+            state = next(state, className.charAt(i));
+
+            if (states.get(state).isEmpty()) {
+                return Collections.emptySet();
+            }
+        }
+        return accepted.get(state);
+    }
+
+    /**
+     * Returns the number of deterministic states built so far.
+     *
+     * @return
+     */
+    public synchronized int getStateCount() {
+        return states.size();
+    }
+
+    private int next(int state, char c) {
+        Integer target = transitions.get(state).get(c);
+
+        if (null == target) {
+            BitSet from = states.get(state);
+            boolean full = states.size() >= MAX_STATES;
+
+            // Start over rather than let a pathological set of names grow the table without bound
+            if (full) {
+                reset();
+            }
+            target = intern(step(from, c));
+            if (!full) {
+                transitions.get(state).put(c, target);
+            }
+        }
+        return target;
+    }
+
+    private void reset() {
+        states.clear();
+        stateIds.clear();
+        transitions.clear();
+        accepted.clear();
+
+        BitSet start = new BitSet(offsets[patterns.length]);
+        for (int p = 0; p < patterns.length; p++) {
+            enter(start, p, 0);
+        }
+        intern(start);
+    }
+
+    private int intern(BitSet set) {
+        Integer id = stateIds.get(set);
+
+        if (null == id) {
+            id = states.size();
+            states.add(set);
+            stateIds.put(set, id);
+            transitions.add(new HashMap<Character, Integer>());
+            accepted.add(collectTests(set));
+        }
+        return id;
+    }
+
+    private BitSet step(BitSet from, char c) {
+        BitSet to = new BitSet(offsets[patterns.length]);
+        int p = 0;
+
+        for (int s = from.nextSetBit(0); s >= 0; s = from.nextSetBit(s + 1)) {
+            while (s >= offsets[p + 1]) { p++; }
+            int position = s - offsets[p];
+
+            if (position == patterns[p].length) {
+                continue;
+            }
+            char token = patterns[p][position];
+
+            if (token == ANY) {
+                enter(to, p, position);
+            } else if (token == ONE || token == c) {
+                enter(to, p, position + 1);
+            }
+        }
+        return to;
+    }
+
+    // Adds a pattern position to the set, along with the positions reached by letting '*' match nothing
+    private void enter(BitSet set, int p, int position) {
+        set.set(offsets[p] + position);
+
+        while (position < patterns[p].length && patterns[p][position] == ANY) {
+            set.set(offsets[p] + ++position);
+        }
+    }
+
+    private Set<String> collectTests(BitSet set) {
+        Set<String> tests = new HashSet<String>();
+
+        for (int p = 0; p < patterns.length; p++) {
+            if (set.get(offsets[p + 1] - 1)) {
+                tests.addAll(patternTests.get(p));
+            }
+        }
+        return tests.isEmpty() ? Collections.<String>emptySet() : Collections.unmodifiableSet(tests);
+    }
+}
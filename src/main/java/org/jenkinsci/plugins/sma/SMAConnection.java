@@ -9,9 +9,9 @@ import com.sforce.soap.partner.sobject.SObject;
 import com.sforce.ws.ConnectionException;
 import com.sforce.ws.ConnectorConfig;
 
-import java.io.ByteArrayOutputStream;
 import java.text.DecimalFormat;
 import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.logging.Logger;
 
 /**
@@ -30,6 +30,8 @@ public class SMAConnection {
     private final String pollWaitString;
     private final String maxPollString;
 
+    private String asyncResultId;
+    private String errorMessage;
     private DeployResult deployResult;
     private DeployDetails deployDetails;
     private double API_VERSION;
@@ -104,9 +106,10 @@ public class SMAConnection {
     }
 
     /**
-     * Sets configuration and performs the deployment of metadata to a Salesforce organization
+     * Sets configuration and performs the deployment of metadata to a Salesforce organization. The package is
+     * streamed from disk into the deploy request.
      *
-     * @param bytes
+     * @param zip
      * @param validateOnly
      * @param testLevel
      * @param specifiedTests
@@ -114,7 +117,7 @@ public class SMAConnection {
      * @return
      * @throws Exception
      */
-    public boolean deployToServer(ByteArrayOutputStream bytes,
+    public boolean deployToServer(SMAZip zip,
                                   TestLevel testLevel,
                                   String[] specifiedTests,
                                   boolean validateOnly,
@@ -138,38 +141,147 @@ public class SMAConnection {
             deployOptions.setTestLevel(testLevel);
         }
 
-        AsyncResult asyncResult = metadataConnection.deploy(bytes.toByteArray(), deployOptions);
-        String asyncResultId = asyncResult.getId();
+        asyncResultId = new SMADeployUpload(metadataConfig).deploy(zip, deployOptions);
 
-        int poll = 0;
-        int maxPoll = Integer.valueOf(maxPollString);
+        return waitForDeployment();
+    }
+
+    /**
+     * Deploys a package that was validated recently, without running its tests again. Returns false if the org
+     * rejects the validation, for instance because it expired or another deployment happened since, or accepts it
+     * and the quick deploy then fails; getErrorMessage tells why. Throws if the outcome is not known.
+     *
+     * @param validationId AsyncResult Id of the successful validation
+     * @return
+     * @throws Exception
+     */
+    public boolean deployRecentValidation(String validationId) throws Exception
+    {
+        asyncResultId = null;
+        errorMessage = null;
+        try {
+            asyncResultId = metadataConnection.deployRecentValidation(validationId);
+        } catch (ConnectionException e) {
+            errorMessage = e.toString();
+            return false;
+        }
+
+        pollDeployment();
+        errorMessage = getErrorStatus();
+        if (null != errorMessage) {
+            return false;
+        }
+        if (!fetchDeployDetails()) {
+            errorMessage = "Quick deploy " + asyncResultId + " " + deployResult.getStatus()
+                    + (null == deployResult.getErrorMessage() ? "" : ": " + deployResult.getErrorMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the AsyncResult Id of the last deployment or validation
+     *
+     * @return
+     */
+    public String getAsyncResultId() { return asyncResultId; }
+
+    /**
+     * Returns why the last quick deploy did not succeed, or null
+     *
+     * @return
+     */
+    public String getErrorMessage() { return errorMessage; }
+
+    /**
+     * Waits for the current deployment to finish, then fetches its details
+     *
+     * @return
+     * @throws Exception
+     */
+    private boolean waitForDeployment() throws Exception
+    {
+        pollDeployment();
+
+        // This is more to do with errors related to Salesforce. Actual deployment failures are not returned as error codes.
+        String errorStatus = getErrorStatus();
+        if (null != errorStatus) {
+            throw new Exception(errorStatus);
+        }
+        return fetchDeployDetails();
+    }
+
+    /**
+     * Polls the status of the current deployment until it is done. Polling starts after a short wait and backs off
+     * up to pollWait while the deployment makes no progress; maxPoll times pollWait is how long to wait in total.
+     *
+     * @throws Exception
+     */
+    private void pollDeployment() throws Exception
+    {
         long pollWait = Long.valueOf(pollWaitString);
-        boolean fetchDetails;
-        do {
-            Thread.sleep(pollWait);
+        long timeout = Integer.valueOf(maxPollString) * pollWait;
+        SMAPollSchedule schedule = new SMAPollSchedule(SMAPollSchedule.MIN_WAIT, pollWait, timeout, new Random());
+        long progress = 0;
+        int poll = 0;
 
-            if (poll++ > maxPoll) {
+        while (true) {
+            Thread.sleep(schedule.next(progress));
+
+            // The details are only needed once the deployment is done
+            deployResult = metadataConnection.checkDeployStatus(asyncResultId, false);
+            poll++;
+
+            if (deployResult.isDone()) {
+                break;
+            }
+            if (schedule.isExpired()) {
                 throw new Exception("[SMA] Request timed out. You can check the results later by using this AsyncResult Id: " + asyncResultId);
             }
-            // Only fetch the details every three poll attempts
-            fetchDetails = (poll % 3 == 0);
-            deployResult = metadataConnection.checkDeployStatus(asyncResultId, fetchDetails);
-        } while (!deployResult.isDone());
+            progress = getProgress(deployResult);
+            LOG.fine("Deployment " + asyncResultId + ": " + deployResult.getNumberComponentsDeployed() + "/"
+                    + deployResult.getNumberComponentsTotal() + " components, " + deployResult.getNumberTestsCompleted()
+                    + "/" + deployResult.getNumberTestsTotal() + " tests after " + poll + " polls");
+        }
+    }
 
-        // This is more to do with errors related to Salesforce. Actual deployment failures are not returned as error codes.
+    /**
+     * Returns the Salesforce error of a finished deployment that failed with one, or null
+     *
+     * @return
+     */
+    private String getErrorStatus() {
         if (!deployResult.isSuccess() && deployResult.getErrorStatusCode() != null) {
-            throw new Exception(deployResult.getErrorStatusCode() + " msg:" + deployResult.getErrorMessage());
+            return deployResult.getErrorStatusCode() + " msg:" + deployResult.getErrorMessage();
         }
+        return null;
+    }
 
-        if (!fetchDetails) {
-            // Get the final result with details if we didn't do it in the last attempt.
-            deployResult = metadataConnection.checkDeployStatus(asyncResultId, true);
-        }
+    /**
+     * Fetches the details of the finished deployment
+     *
+     * @return
+     * @throws Exception
+     */
+    private boolean fetchDeployDetails() throws Exception
+    {
+        deployResult = metadataConnection.checkDeployStatus(asyncResultId, true);
         deployDetails = deployResult.getDetails();
 
         return deployResult.isSuccess();
     }
 
+    /**
+     * Returns how many components and tests a deployment has processed, successfully or not
+     *
+     * @param result
+     * @return
+     */
+    private static long getProgress(DeployResult result) {
+        return (long) result.getNumberComponentsDeployed() + result.getNumberComponentErrors()
+                + result.getNumberTestsCompleted() + result.getNumberTestErrors();
+    }
+
     /**
      * Returns a formatted string of test failures for printing to the Jenkins console
      *
@@ -0,0 +1,248 @@
+package org.jenkinsci.plugins.sma;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Local record of what was last deployed to an org: the path and blob id of every source file in the tree of the
+ * last successful deployment of a job, and the content hash of the last package any job deployed to the org.
+ * Deltas computed against it do not depend on that commit still being reachable. It also keeps the last
+ * successful validation against the org, so the same package can be quick deployed by whichever job deploys it.
+ *
+ */
+public class SMADeployLedger {
+    private static final Logger LOG = Logger.getLogger(SMADeployLedger.class.getName());
+    private static final String LEDGERDIR = "sma";
+    private static final String FILENAME = "ledger.properties";
+    private static final String PACKAGE_FILENAME = "package.properties";
+    private static final String PACKAGE_HASH = "sha256";
+    private static final String VALIDATION_FILENAME = "validation.properties";
+    private static final String VALIDATION_ID = "id";
+    private static final String VALIDATION_TEST_LEVEL = "testLevel";
+    private static final String VALIDATION_TIME = "time";
+    // Salesforce keeps a validation available for quick deploy for 10 days
+    private static final long VALIDATION_LIFETIME = TimeUnit.DAYS.toMillis(10);
+
+    private final File file;
+    private final File orgDir;
+
+    /**
+     * Constructor for a ledger stored in the given file, with the org records next to it
+     *
+     * @param file
+     */
+    public SMADeployLedger(File file) {
+        this(file, file.getParentFile());
+    }
+
+    /**
+     * Constructor for a ledger stored in the given file, with the org records in the given directory
+     *
+     * @param file
+     * @param orgDir
+     */
+    public SMADeployLedger(File file, File orgDir) {
+        this.file = file;
+        this.orgDir = orgDir;
+    }
+
+    /**
+     * Returns the ledger of what a job deployed to an org, stored below the given root directory. Jobs deploying
+     * other repositories to the same org keep ledgers of their own, so one never deletes the components of another.
+     * The last package and validation are kept once per org, since other jobs deploying to it change what it holds.
+     *
+     * @param rootDir
+     * @param username
+     * @param server
+     * @param jobName Full name of the job
+     * @return SMADeployLedger
+     */
+    public static SMADeployLedger forJob(File rootDir, String username, String server, String jobName) {
+        String org = (username + "@" + server.replaceFirst("^[a-z]+://", "")).replaceAll("[^A-Za-z0-9._@-]", "_");
+        String job = jobName.replaceAll("[^A-Za-z0-9._-]", "_");
+
+        File orgDir = new File(new File(rootDir, LEDGERDIR), org);
+
+        return new SMADeployLedger(new File(new File(orgDir, job), FILENAME), orgDir);
+    }
+
+    public File getFile() { return file; }
+
+    /**
+     * Returns whether anything has been recorded for this org yet.
+     *
+     * @return
+     */
+    public boolean exists() { return file.isFile(); }
+
+    /**
+     * Reads the deployed paths and their blob ids.
+     *
+     * @return
+     * @throws IOException
+     */
+    public Map<String, ObjectId> load() throws IOException {
+        Properties entries = new Properties();
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(file);
+            entries.load(fis);
+        } finally {
+            if (null != fis) { fis.close(); }
+        }
+
+        Map<String, ObjectId> deployed = new HashMap<String, ObjectId>();
+        for (String path : entries.stringPropertyNames()) {
+            String id = entries.getProperty(path).trim();
+
+            if (ObjectId.isId(id)) {
+                deployed.put(path, ObjectId.fromString(id));
+            } else {
+                LOG.warning("Ignoring malformed ledger entry for " + path + " in " + file);
+            }
+        }
+        return deployed;
+    }
+
+    /**
+     * Replaces the ledger with the given deployed state. The new ledger is written next to the old one and moved
+     * into place, so an interrupted build leaves the previous ledger intact.
+     *
+     * @param deployed
+     * @throws IOException
+     */
+    public void record(Map<String, ObjectId> deployed) throws IOException {
+        Properties entries = new Properties();
+        for (Map.Entry<String, ObjectId> entry : deployed.entrySet()) {
+            entries.setProperty(entry.getKey(), entry.getValue().name());
+        }
+        replace(file, entries, "Deployed source files");
+    }
+
+    /**
+     * Returns the content hash of the package last deployed to this org by any job, or null if none was recorded.
+     * Deployments made outside of SMA are not seen.
+     *
+     * @return
+     * @throws IOException
+     */
+    public String getPackageHash() throws IOException {
+        return read(getOrgFile(PACKAGE_FILENAME)).getProperty(PACKAGE_HASH);
+    }
+
+    /**
+     * Records the content hash of the package just deployed to this org
+     *
+     * @param packageHash
+     * @throws IOException
+     */
+    public void recordPackageHash(String packageHash) throws IOException {
+        Properties entries = new Properties();
+        entries.setProperty(PACKAGE_HASH, packageHash);
+        replace(getOrgFile(PACKAGE_FILENAME), entries, "Last deployed package");
+    }
+
+    /**
+     * Returns the AsyncResult Id of the last successful validation against this org, if it was of the given package
+     * and test level and can still be quick deployed. Returns null otherwise.
+     *
+     * @param packageHash
+     * @param testLevel
+     * @return
+     * @throws IOException
+     */
+    public String getValidation(String packageHash, String testLevel) throws IOException {
+        Properties entries = read(getOrgFile(VALIDATION_FILENAME));
+        long time;
+
+        try {
+            time = Long.parseLong(entries.getProperty(VALIDATION_TIME, "0"));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (!packageHash.equals(entries.getProperty(PACKAGE_HASH))
+                || !testLevel.equals(entries.getProperty(VALIDATION_TEST_LEVEL))
+                || System.currentTimeMillis() - time > VALIDATION_LIFETIME) {
+            return null;
+        }
+        return entries.getProperty(VALIDATION_ID);
+    }
+
+    /**
+     * Records a successful validation of a package against this org
+     *
+     * @param packageHash
+     * @param testLevel
+     * @param validationId
+     * @throws IOException
+     */
+    public void recordValidation(String packageHash, String testLevel, String validationId) throws IOException {
+        Properties entries = new Properties();
+        entries.setProperty(PACKAGE_HASH, packageHash);
+        entries.setProperty(VALIDATION_TEST_LEVEL, testLevel);
+        entries.setProperty(VALIDATION_ID, validationId);
+        entries.setProperty(VALIDATION_TIME, String.valueOf(System.currentTimeMillis()));
+        replace(getOrgFile(VALIDATION_FILENAME), entries, "Last validated package");
+    }
+
+    /**
+     * Forgets the last validation. A deployment to the org makes earlier validations unusable.
+     */
+    public void clearValidation() {
+        File validationFile = getOrgFile(VALIDATION_FILENAME);
+
+        if (validationFile.exists() && !validationFile.delete()) {
+            LOG.warning("Could not delete " + validationFile);
+        }
+    }
+
+    private File getOrgFile(String name) {
+        return new File(orgDir, name);
+    }
+
+    private static Properties read(File source) throws IOException {
+        Properties entries = new Properties();
+
+        if (source.isFile()) {
+            FileInputStream fis = null;
+            try {
+                fis = new FileInputStream(source);
+                entries.load(fis);
+            } finally {
+                if (null != fis) { fis.close(); }
+            }
+        }
+        return entries;
+    }
+
+    private static void replace(File target, Properties entries, String comment) throws IOException {
+        File directory = target.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        File temp = File.createTempFile(target.getName(), ".tmp", directory);
+        try {
+            FileOutputStream fos = null;
+            try {
+                fos = new FileOutputStream(temp);
+                entries.store(fos, comment);
+            } finally {
+                if (null != fos) { fos.close(); }
+            }
+            if (!temp.renameTo(target) && !(target.delete() && temp.renameTo(target))) {
+                throw new IOException("Could not replace " + target);
+            }
+        } finally {
+            if (temp.exists()) { temp.delete(); }
+        }
+    }
+}
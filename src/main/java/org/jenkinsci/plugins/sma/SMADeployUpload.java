@@ -0,0 +1,228 @@
+package org.jenkinsci.plugins.sma;
+
+import com.sforce.soap.metadata.DeployOptions;
+import com.sforce.ws.ConnectionException;
+import com.sforce.ws.ConnectorConfig;
+import com.sforce.ws.util.Base64;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sends a Metadata API deploy call with the package streamed from disk. MetadataConnection.deploy takes the zip
+ * as a byte array and encodes all of it in memory; here the zip is read and base64 encoded a chunk at a time
+ * straight into the request body, so the heap used by an upload does not grow with the package. When the connector
+ * config asks for compression, the body is gzipped on the fly and sent in chunks, as its length is not known upfront.
+ *
+ */
+public class SMADeployUpload {
+    private static final String ENVELOPE_NS = "http://schemas.xmlsoap.org/soap/envelope/";
+    private static final String METADATA_NS = "http://soap.sforce.com/2006/04/metadata";
+    private static final String CHARSET = "UTF-8";
+    // A multiple of 3, so every full chunk encodes to base64 without padding
+    private static final int CHUNK_SIZE = 3 * 16 * 1024;
+
+    private final ConnectorConfig config;
+
+    /**
+     * Creates an upload against the endpoint and session of a metadata connection
+     *
+     * @param config
+     */
+    public SMADeployUpload(ConnectorConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Starts the deployment of a package and returns the id of the asynchronous deploy
+     *
+     * @param zip
+     * @param deployOptions
+     * @return
+     * @throws IOException
+     * @throws ConnectionException
+     */
+    public String deploy(SMAZip zip, DeployOptions deployOptions) throws IOException, ConnectionException {
+        byte[] head = getHead().getBytes(CHARSET);
+        byte[] tail = getTail(deployOptions).getBytes(CHARSET);
+        long zipLength = zip.length();
+        long encodedLength = (zipLength + 2) / 3 * 4;
+
+        HttpURLConnection connection = openConnection();
+        if (config.isCompression()) {
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            connection.setChunkedStreamingMode(CHUNK_SIZE);
+        } else {
+            connection.setFixedLengthStreamingMode(head.length + encodedLength + tail.length);
+        }
+
+        OutputStream out = null;
+        InputStream in = null;
+        try {
+            out = connection.getOutputStream();
+            if (config.isCompression()) {
+                out = new GZIPOutputStream(out, CHUNK_SIZE);
+            }
+            out.write(head);
+
+            in = zip.openStream();
+            byte[] chunk = new byte[CHUNK_SIZE];
+            int length;
+
+            while ((length = readChunk(in, chunk)) > 0) {
+                out.write(Base64.encode(length == chunk.length ? chunk : Arrays.copyOf(chunk, length)));
+            }
+            out.write(tail);
+        } finally {
+            if (null != in) { in.close(); }
+            if (null != out) { out.close(); }
+        }
+        try {
+            return readAsyncResultId(connection);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private HttpURLConnection openConnection() throws IOException {
+        URL url = new URL(config.getServiceEndpoint());
+        Proxy proxy = config.getProxy();
+        HttpURLConnection connection = (HttpURLConnection) (null == proxy ? url.openConnection() : url.openConnection(proxy));
+
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setUseCaches(false);
+        connection.setConnectTimeout(config.getConnectionTimeout());
+        connection.setReadTimeout(config.getReadTimeout());
+        connection.setRequestProperty("Content-Type", "text/xml; charset=" + CHARSET);
+        connection.setRequestProperty("SOAPAction", "\"\"");
+
+        String proxyUser = config.getProxyUsername();
+        if (null != proxyUser && !proxyUser.isEmpty()) {
+            String credentials = proxyUser + ":" + config.getProxyPassword();
+            connection.setRequestProperty("Proxy-Authorization",
+                    "Basic " + new String(Base64.encode(credentials.getBytes(CHARSET)), CHARSET));
+        }
+        return connection;
+    }
+
+    private String getHead() {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<env:Envelope xmlns:env=\"" + ENVELOPE_NS + "\">"
+                + "<env:Header><SessionHeader xmlns=\"" + METADATA_NS + "\">"
+                + element("sessionId", config.getSessionId())
+                + "</SessionHeader></env:Header>"
+                + "<env:Body><deploy xmlns=\"" + METADATA_NS + "\"><ZipFile>";
+    }
+
+    // DeployOptions elements must follow the order of the WSDL sequence
+    private static String getTail(DeployOptions deployOptions) {
+        StringBuilder tail = new StringBuilder("</ZipFile><DeployOptions>");
+
+        tail.append(element("allowMissingFiles", deployOptions.isAllowMissingFiles()));
+        tail.append(element("autoUpdatePackage", deployOptions.isAutoUpdatePackage()));
+        tail.append(element("checkOnly", deployOptions.isCheckOnly()));
+        tail.append(element("ignoreWarnings", deployOptions.isIgnoreWarnings()));
+        tail.append(element("performRetrieve", deployOptions.isPerformRetrieve()));
+        tail.append(element("purgeOnDelete", deployOptions.isPurgeOnDelete()));
+        tail.append(element("rollbackOnError", deployOptions.isRollbackOnError()));
+
+        if (null != deployOptions.getRunTests()) {
+            for (String test : deployOptions.getRunTests()) {
+                tail.append(element("runTests", test));
+            }
+        }
+        tail.append(element("singlePackage", deployOptions.isSinglePackage()));
+
+        if (null != deployOptions.getTestLevel()) {
+            tail.append(element("testLevel", deployOptions.getTestLevel().name()));
+        }
+        return tail.append("</DeployOptions></deploy></env:Body></env:Envelope>").toString();
+    }
+
+    private static String element(String name, Object value) {
+        return "<" + name + ">" + escape(String.valueOf(value)) + "</" + name + ">";
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    // Fills the chunk unless the stream ends first
+    private static int readChunk(InputStream in, byte[] chunk) throws IOException {
+        int filled = 0;
+        int read;
+
+        while (filled < chunk.length && (read = in.read(chunk, filled, chunk.length - filled)) >= 0) {
+            filled += read;
+        }
+        return filled;
+    }
+
+    /**
+     * Reads the deploy response, which carries the id of the asynchronous result or a SOAP fault.
+     */
+    private static String readAsyncResultId(HttpURLConnection connection) throws IOException, ConnectionException {
+        int status = connection.getResponseCode();
+        InputStream response = status >= HttpURLConnection.HTTP_BAD_REQUEST ? connection.getErrorStream() : connection.getInputStream();
+
+        if (null == response) {
+            throw new ConnectionException("Deploy request failed with HTTP " + status);
+        }
+        if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+            response = new GZIPInputStream(response);
+        }
+        String id = null;
+        String faultCode = null;
+        String faultString = null;
+        XMLStreamReader reader = null;
+
+        try {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            reader = factory.createXMLStreamReader(response);
+
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                String name = reader.getLocalName();
+
+                if ("id".equals(name) && null == id) {
+                    id = reader.getElementText().trim();
+                } else if ("faultcode".equals(name)) {
+                    faultCode = reader.getElementText().trim();
+                } else if ("faultstring".equals(name)) {
+                    faultString = reader.getElementText().trim();
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new ConnectionException("Unable to read the deploy response (HTTP " + status + "): " + e.getMessage(), e);
+        } finally {
+            if (null != reader) {
+                try { reader.close(); } catch (XMLStreamException e) { /* Nothing left to read */ }
+            }
+            response.close();
+        }
+        if (null != faultCode || null != faultString) {
+            throw new ConnectionException(faultCode + ": " + faultString);
+        }
+        if (null == id || id.isEmpty()) {
+            throw new ConnectionException("The deploy response (HTTP " + status + ") has no AsyncResult id");
+        }
+        return id;
+    }
+}
@@ -1,39 +1,60 @@
 package org.jenkinsci.plugins.sma;
 
-import org.eclipse.jgit.api.DiffCommand;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffFormatter;
+import org.eclipse.jgit.diff.RenameDetector;
+import org.eclipse.jgit.lib.AbbreviatedObjectId;
 import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
 import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
-import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 import org.eclipse.jgit.transport.RefSpec;
-import org.eclipse.jgit.treewalk.CanonicalTreeParser;
 import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.util.io.DisabledOutputStream;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 /**
- * Wrapper for git interactions using jGit.
+ * Wrapper for git interactions using jGit. An instance is a session over the repository: it holds one ObjectReader
+ * and RevWalk, and caches the trees it has parsed, until it is closed. Instances are not thread safe.
  *
  */
-public class SMAGit {
+public class SMAGit implements Closeable {
     public enum Mode { STD, INI, PRB }
 
-    private final String SOURCEDIR = "src/";
-
     private Git git;
     private Repository repository;
+    private ObjectReader reader;
+    private RevWalk revWalk;
     private List<DiffEntry> diffs;
     private String previousCommit, currentCommit;
+    private Integer renameScore;
+    private SMASourceFilter sourceFilter;
+    private Map<String, ObjectId> additions, deletions, updates, originals;
+    private final Map<String, RevTree> commitTrees = new HashMap<String, RevTree>();
+    private final Map<ObjectId, Map<String, ObjectId>> subtrees = new HashMap<ObjectId, Map<String, ObjectId>>();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    // Seconds to wait on the remote before giving up on the fetch
+    private static final int FETCH_TIMEOUT = 120;
 
     private static final Logger LOG = Logger.getLogger(SMAGit.class.getName());
 
@@ -49,133 +70,420 @@ public class SMAGit {
                   String diffAgainst,
                   Mode smaMode) throws Exception
     {
-        File repoDir = new File(pathToWorkspace + "/.git");
-        FileRepositoryBuilder builder = new FileRepositoryBuilder();
-        this.repository = builder.setGitDir(repoDir).readEnvironment().build();
-        this.git = new Git(repository);
+        this(pathToWorkspace, diffAgainst, smaMode, null);
+    }
 
-        updateLocalRefSpecs(git);
-        this.currentCommit = retrieveCommitId(repository, Constants.HEAD);
+    /**
+     * Creates an SMAGit instance that detects renamed files
+     *
+     * @param pathToWorkspace
+     * @param diffAgainst
+     * @param smaMode
+     * @param renameScore Minimum similarity (0-100) for a delete and an add to be paired as a rename, or null to
+     *                    disable rename detection
+     * @throws Exception
+     */
+    public SMAGit(String pathToWorkspace,
+                  String diffAgainst,
+                  Mode smaMode,
+                  Integer renameScore) throws Exception
+    {
+        this(pathToWorkspace, diffAgainst, smaMode, renameScore, null);
+    }
 
-        if (smaMode == Mode.PRB) {
-            this.previousCommit = retrieveCommitId(repository, "refs/remotes/origin/" + diffAgainst);
+    /**
+     * Creates an SMAGit instance for the source files below the given source root
+     *
+     * @param pathToWorkspace
+     * @param diffAgainst
+     * @param smaMode
+     * @param renameScore Minimum similarity (0-100) for a delete and an add to be paired as a rename, or null to
+     *                    disable rename detection
+     * @param sourceRoot Directory path from the root of the repository, or null for any src directory
+     * @throws Exception
+     */
+    public SMAGit(String pathToWorkspace,
+                  String diffAgainst,
+                  Mode smaMode,
+                  Integer renameScore,
+                  String sourceRoot) throws Exception
+    {
+        this.renameScore = renameScore;
+        this.sourceFilter = new SMASourceFilter(sourceRoot);
+        openRepository(pathToWorkspace);
+
+        try {
+            this.currentCommit = retrieveCommitId(Constants.HEAD);
 
-        } else if (smaMode == Mode.STD) {
-            this.previousCommit = diffAgainst;
+            if (smaMode == Mode.PRB) {
+                updateLocalRefSpecs(diffAgainst);
+                this.previousCommit = retrieveCommitId("refs/remotes/origin/" + diffAgainst);
+
+            } else if (smaMode == Mode.STD) {
+                this.previousCommit = diffAgainst;
+            }
+            if (smaMode != Mode.INI) {
+                getDiffs();
+            }
+        } catch (Exception e) {
+            close();
+            throw e;
         }
-        if (smaMode != Mode.INI) {
-            getDiffs();
+    }
+
+    /**
+     * Creates an SMAGit instance whose changes are the differences between the current tree and the deployed state
+     * recorded in a ledger. There is no previous commit in this mode; originals carry the ledger's blob ids.
+     *
+     * @param pathToWorkspace
+     * @param deployed Paths and blob ids of the source files last deployed
+     * @throws Exception
+     */
+    public SMAGit(String pathToWorkspace,
+                  Map<String, ObjectId> deployed) throws Exception
+    {
+        this(pathToWorkspace, deployed, null);
+    }
+
+    /**
+     * Creates an SMAGit instance whose changes are the differences between the source files below the given
+     * source root and the deployed state recorded in a ledger.
+     *
+     * @param pathToWorkspace
+     * @param deployed Paths and blob ids of the source files last deployed
+     * @param sourceRoot Directory path from the root of the repository, or null for any src directory
+     * @throws Exception
+     */
+    public SMAGit(String pathToWorkspace,
+                  Map<String, ObjectId> deployed,
+                  String sourceRoot) throws Exception
+    {
+        this(pathToWorkspace, deployed, null, sourceRoot);
+    }
+
+    /**
+     * Creates an SMAGit instance whose changes are the differences between the source files below the given
+     * source root and the deployed state recorded in a ledger, pairing deleted and added files as renames.
+     *
+     * @param pathToWorkspace
+     * @param deployed Paths and blob ids of the source files last deployed
+     * @param renameScore Minimum similarity (0-100) for a delete and an add to be paired as a rename, or null to
+     *                    disable rename detection
+     * @param sourceRoot Directory path from the root of the repository, or null for any src directory
+     * @throws Exception
+     */
+    public SMAGit(String pathToWorkspace,
+                  Map<String, ObjectId> deployed,
+                  Integer renameScore,
+                  String sourceRoot) throws Exception
+    {
+        this.renameScore = renameScore;
+        this.sourceFilter = new SMASourceFilter(sourceRoot);
+        openRepository(pathToWorkspace);
+
+        try {
+            this.currentCommit = retrieveCommitId(Constants.HEAD);
+            if (null == renameScore) {
+                classifyAgainst(deployed);
+            } else {
+                diffAgainst(deployed);
+                classifyDiffs();
+            }
+        } catch (Exception e) {
+            close();
+            throw e;
         }
     }
 
+    /**
+     * Opens the repository of the workspace and the reader and walk of this session.
+     *
+     * @param pathToWorkspace
+     * @throws IOException
+     */
+    private void openRepository(String pathToWorkspace) throws IOException {
+        File repoDir = new File(pathToWorkspace + "/.git");
+        this.repository = SMARepositoryCache.acquire(repoDir);
+        this.git = new Git(repository);
+        this.reader = repository.newObjectReader();
+        this.revWalk = new RevWalk(reader);
+    }
+
+    /**
+     * Releases the reader and the walk held by this session, and gives the repository back to the cache.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        commitTrees.clear();
+        subtrees.clear();
+        revWalk.close();
+        reader.close();
+        SMARepositoryCache.release(repository);
+    }
+
     /**
      *
-     * @param repository
      * @param revStr
      * @return
      * @throws IOException
      */
-    private static String retrieveCommitId(Repository repository, String revStr) throws IOException {
+    private String retrieveCommitId(String revStr) throws IOException {
         ObjectId id = repository.resolve(revStr);
-        RevCommit commit = new RevWalk(repository).parseCommit(id);
+        RevCommit commit = revWalk.parseCommit(id);
         return commit.getName();
     }
 
     /**
+     * Fetches the pull request target branch into its remote tracking ref. Only that branch is fetched, so this is
+     * cheap even when the ref is already up to date, and a target branch that moved upstream is never diffed
+     * against a stale base. If the fetch fails, the local ref is used as it is.
      *
-     * @param git Git
+     * @param branch
      * @throws Exception
      */
-    private static void updateLocalRefSpecs(Git git) throws Exception {
+    private void updateLocalRefSpecs(String branch) throws Exception {
+        String remoteRef = "refs/remotes/origin/" + branch;
+
         try {
-            git.fetch().setRefSpecs(new RefSpec("refs/heads/*:refs/remotes/origin/*")).call();
+            git.fetch()
+                    .setRemote("origin")
+                    .setRefSpecs(new RefSpec("+refs/heads/" + branch + ":" + remoteRef))
+                    .setTimeout(FETCH_TIMEOUT)
+                    .call();
         } catch (Exception e) {
-            LOG.warning("Error while fetching ref heads and remotes: " + e.getMessage());
+            LOG.warning("Error while fetching " + remoteRef + ", the local ref may be out of date: " + e.getMessage());
         }
     }
 
     /**
      * Returns all of the items that were added in the current commit.
      *
-     * @return The ArrayList containing all of the additions in the current commit.
+     * @return Map of the paths and blob ids of all of the additions in the current commit.
      * @throws IOException
      */
-    public Map<String, byte[]> getNewMetadata() throws Exception {
-        Map<String, byte[]> additions = new HashMap<String, byte[]>();
-
-        for (DiffEntry diff : diffs) {
-            if (diff.getChangeType().toString().equals("ADD")) {
-                String item = SMAUtility.checkMeta(diff.getNewPath());
-
-                if (!additions.containsKey(item) && item.contains(SOURCEDIR)) {
-                    additions.put(diff.getNewPath(), getBlob(diff.getNewPath(), getCurrentCommit()));
-                }
-            }
-        }
-        return additions;
+    public Map<String, ObjectId> getNewMetadata() throws Exception {
+        classifyDiffs();
+        return new HashMap<String, ObjectId>(additions);
     }
 
     /**
      * Returns all of the items that were deleted in the current commit.
      *
-     * @return The ArrayList containing all of the items that were deleted in the current commit.
+     * @return Map of the paths and blob ids of all of the items that were deleted in the current commit.
      */
-    public Map<String, byte[]> getDeletedMetadata() throws Exception
+    public Map<String, ObjectId> getDeletedMetadata() throws Exception
     {
-        Map<String, byte[]> deletions = new HashMap<String, byte[]>();
+        classifyDiffs();
+        return new HashMap<String, ObjectId>(deletions);
+    }
 
-        for (DiffEntry diff : diffs) {
-            if (diff.getChangeType().toString().equals("DELETE")) {
-                String item = SMAUtility.checkMeta(diff.getOldPath());
+    /**
+     * Returns all of the updated changes in the current commit.
+     *
+     * @return Map of the paths and blob ids of the items that were modified (new paths) in the current commit.
+     * @throws IOException
+     */
+    public Map<String, ObjectId> getUpdatedMetadata() throws Exception {
+        classifyDiffs();
+        return new HashMap<String, ObjectId>(updates);
+    }
 
-                if (!deletions.containsKey(item) && item.contains(SOURCEDIR)) {
-                    deletions.put(diff.getOldPath(), getBlob(diff.getOldPath(), getPreviousCommit()));
-                }
+    /**
+     * Returns all of the modified (old paths) changes in the current commit.
+     *
+     * @return Map of the paths and blob ids of the items that were modified (old paths).
+     */
+    public Map<String, ObjectId> getOriginalMetadata() throws Exception {
+        classifyDiffs();
+        return new HashMap<String, ObjectId>(originals);
+    }
+
+    /**
+     * Splits the diff into added, modified and deleted items in a single pass. The result is kept for the life of
+     * this instance, so every getter after the first is a copy of an already classified map.
+     */
+    private void classifyDiffs() throws Exception {
+        if (null != additions) {
+            return;
+        }
+        additions = new HashMap<String, ObjectId>();
+        deletions = new HashMap<String, ObjectId>();
+        updates = new HashMap<String, ObjectId>();
+        originals = new HashMap<String, ObjectId>();
+
+        if (null == diffs) {
+            return;
+        }
+        for (DiffEntry diff : diffs) {
+            switch (diff.getChangeType()) {
+                case ADD:
+                    addChange(additions, diff.getNewPath(), diff.getNewId());
+                    break;
+                case DELETE:
+                    addChange(deletions, diff.getOldPath(), diff.getOldId());
+                    break;
+                case MODIFY:
+                    addChange(updates, diff.getNewPath(), diff.getNewId());
+                    addChange(originals, diff.getOldPath(), diff.getOldId());
+                    break;
+                case RENAME:
+                    classifyRename(diff);
+                    break;
+                default:
+                    break;
             }
         }
+    }
 
-        return deletions;
+    /**
+     * Classifies a detected rename. Salesforce only knows a component by its type and member name, so a move that
+     * keeps both is the same component: an exact copy needs no deployment at all and a changed one is an update.
+     * Any other rename is a new component replacing the old one.
+     *
+     * @param diff
+     * @throws Exception
+     */
+    private void classifyRename(DiffEntry diff) throws Exception {
+        SMAMetadata oldItem = SMAMetadataTypes.createMetadataObject(SMAUtility.checkMeta(diff.getOldPath()), (SMABlob) null);
+        SMAMetadata newItem = SMAMetadataTypes.createMetadataObject(SMAUtility.checkMeta(diff.getNewPath()), (SMABlob) null);
+
+        // Files of no Metadata API type all share one type, so they are never the same component
+        if (oldItem.isValid() && oldItem.getType() == newItem.getType()
+                && oldItem.getMember().equalsIgnoreCase(newItem.getMember())) {
+            if (diff.getScore() < 100) {
+                addChange(updates, diff.getNewPath(), diff.getNewId());
+                addChange(originals, diff.getOldPath(), diff.getOldId());
+            }
+        } else {
+            addChange(additions, diff.getNewPath(), diff.getNewId());
+            addChange(deletions, diff.getOldPath(), diff.getOldId());
+        }
     }
 
     /**
-     * Returns all of the updated changes in the current commit.
+     * Classifies the current tree against a deployed state instead of a diff. Paths are visited in sorted order,
+     * so a component is always seen before its -meta.xml, as in a diff.
      *
-     * @return The ArrayList containing the items that were modified (new paths) and added to the repository.
-     * @throws IOException
+     * @param deployed
+     * @throws Exception
      */
-    public Map<String, byte[]> getUpdatedMetadata() throws Exception {
-        Map<String, byte[]> modifiedMetadata = new HashMap<String, byte[]>();
+    private void classifyAgainst(Map<String, ObjectId> deployed) throws Exception {
+        additions = new HashMap<String, ObjectId>();
+        deletions = new HashMap<String, ObjectId>();
+        updates = new HashMap<String, ObjectId>();
+        originals = new HashMap<String, ObjectId>();
+
+        Map<String, ObjectId> current = new TreeMap<String, ObjectId>(getAllMetadata());
+        for (Map.Entry<String, ObjectId> item : current.entrySet()) {
+            ObjectId before = deployed.get(item.getKey());
+
+            if (null == before) {
+                addChange(additions, item.getKey(), item.getValue());
+            } else if (!before.equals(item.getValue())) {
+                addChange(updates, item.getKey(), item.getValue());
+                addChange(originals, item.getKey(), before);
+            }
+        }
+        for (Map.Entry<String, ObjectId> item : new TreeMap<String, ObjectId>(deployed).entrySet()) {
+            if (!current.containsKey(item.getKey())) {
+                addChange(deletions, item.getKey(), item.getValue());
+            }
+        }
+    }
 
-        for (DiffEntry diff : diffs) {
-            if (diff.getChangeType().toString().equals("MODIFY")) {
-                String item = SMAUtility.checkMeta(diff.getNewPath());
+    /**
+     * Builds the diff between a deployed state and the current tree, and runs it through rename detection like a
+     * diff between two commits. Deleted files whose content is no longer in the repository can not be scored, so
+     * they stay deletions.
+     *
+     * @param deployed
+     * @throws Exception
+     */
+    private void diffAgainst(Map<String, ObjectId> deployed) throws Exception {
+        List<DiffEntry> changes = new ArrayList<DiffEntry>();
+        List<DiffEntry> unavailable = new ArrayList<DiffEntry>();
+
+        Map<String, ObjectId> current = getAllMetadata();
+        for (Map.Entry<String, ObjectId> item : current.entrySet()) {
+            ObjectId before = deployed.get(item.getKey());
+
+            if (null == before) {
+                changes.add(new DeployedStateEntry(DiffEntry.ChangeType.ADD, null, null, item.getKey(), item.getValue()));
+            } else if (!before.equals(item.getValue())) {
+                changes.add(new DeployedStateEntry(DiffEntry.ChangeType.MODIFY, item.getKey(), before, item.getKey(), item.getValue()));
+            }
+        }
+        for (Map.Entry<String, ObjectId> item : deployed.entrySet()) {
+            if (!current.containsKey(item.getKey())) {
+                DiffEntry deletion = new DeployedStateEntry(DiffEntry.ChangeType.DELETE, item.getKey(), item.getValue(), null, null);
 
-                if (!modifiedMetadata.containsKey(item) && item.contains(SOURCEDIR)) {
-                    modifiedMetadata.put(diff.getNewPath(), getBlob(diff.getNewPath(), getCurrentCommit()));
+                if (hasObject(item.getValue())) {
+                    changes.add(deletion);
+                } else {
+                    unavailable.add(deletion);
                 }
             }
         }
-        return modifiedMetadata;
+
+        RenameDetector renameDetector = new RenameDetector(repository);
+        renameDetector.setRenameScore(renameScore);
+        renameDetector.addAll(changes);
+
+        diffs = new ArrayList<DiffEntry>(renameDetector.compute());
+        diffs.addAll(unavailable);
+        // A component must be classified before its -meta.xml
+        Collections.sort(diffs, new Comparator<DiffEntry>() {
+            @Override
+            public int compare(DiffEntry a, DiffEntry b) {
+                return getPath(a).compareTo(getPath(b));
+            }
+
+            private String getPath(DiffEntry diff) {
+                return diff.getChangeType() == DiffEntry.ChangeType.DELETE ? diff.getOldPath() : diff.getNewPath();
+            }
+        });
     }
 
     /**
-     * Returns all of the modified (old paths) changes in the current commit.
+     * A change between the deployed state and the current tree, in the form rename detection works on
+     */
+    private static class DeployedStateEntry extends DiffEntry {
+        DeployedStateEntry(ChangeType changeType, String oldPath, ObjectId oldId, String newPath, ObjectId newId) {
+            this.changeType = changeType;
+            this.oldPath = null == oldPath ? DEV_NULL : oldPath;
+            this.newPath = null == newPath ? DEV_NULL : newPath;
+            this.oldMode = null == oldId ? FileMode.MISSING : FileMode.REGULAR_FILE;
+            this.newMode = null == newId ? FileMode.MISSING : FileMode.REGULAR_FILE;
+            this.oldId = AbbreviatedObjectId.fromObjectId(null == oldId ? ObjectId.zeroId() : oldId);
+            this.newId = AbbreviatedObjectId.fromObjectId(null == newId ? ObjectId.zeroId() : newId);
+        }
+    }
+
+    /**
+     * Records a changed source item
      *
-     * @return ArrayList containing the items that were modified (old paths).
+     * @param changes
+     * @param path
+     * @param id
      */
-    public Map<String, byte[]> getOriginalMetadata() throws Exception {
-        Map<String, byte[]> originalMetadata = new HashMap<String, byte[]>();
+    private void addChange(Map<String, ObjectId> changes, String path, AbbreviatedObjectId id) {
+        addChange(changes, path, id.toObjectId());
+    }
 
-        for (DiffEntry diff : diffs) {
-            if (diff.getChangeType().toString().equals("MODIFY")) {
-                String item = SMAUtility.checkMeta(diff.getOldPath());
+    /**
+     * Records a changed source item
+     *
+     * @param changes
+     * @param path
+     * @param id
+     */
+    private void addChange(Map<String, ObjectId> changes, String path, ObjectId id) {
+        String item = SMAUtility.checkMeta(path);
 
-                if (!originalMetadata.containsKey(item) && item.contains(SOURCEDIR)) {
-                    originalMetadata.put(diff.getOldPath(), getBlob(diff.getOldPath(), getPreviousCommit()));
-                }
-            }
+        if (!changes.containsKey(item)) {
+            changes.put(path, id);
         }
-        return originalMetadata;
     }
 
     /**
@@ -187,64 +495,320 @@ public class SMAGit {
      * @throws Exception
      */
     public byte[] getBlob(String repoItem, String commit) throws Exception {
-        byte[] data;
+        return getBlob(getBlobId(repoItem, commit));
+    }
 
-        ObjectId commitId = repository.resolve(commit);
-        ObjectReader reader = null;
-        try {
-            reader = repository.newObjectReader();
-            RevWalk revWalk = new RevWalk(reader);
-            RevCommit revCommit = revWalk.parseCommit(commitId);
-            RevTree tree = revCommit.getTree();
-            TreeWalk treeWalk = TreeWalk.forPath(reader, repoItem, tree);
-
-            if (treeWalk != null) {
-                data = reader.open(treeWalk.getObjectId(0)).getBytes();
-            } else {
-                throw new IllegalStateException("Did not find expected file '" + repoItem + "'");
+    /**
+     * Returns the id of the blob for the file at the specified path and commit without reading its content
+     *
+     * @param repoItem
+     * @param commit
+     * @return
+     * @throws Exception
+     */
+    public ObjectId getBlobId(String repoItem, String commit) throws Exception {
+        RevTree root = getCommitTree(commit);
+        ObjectId tree = root;
+        String name = repoItem;
+        int slash = repoItem.lastIndexOf('/');
+
+        if (slash > 0) {
+            tree = getSubtree(root, repoItem.substring(0, slash));
+            name = repoItem.substring(slash + 1);
+        }
+        TreeWalk treeWalk = null == tree ? null : TreeWalk.forPath(reader, name, tree);
+
+        if (null == treeWalk || FileMode.TREE.equals(treeWalk.getRawMode(0))) {
+            throw new IllegalStateException("Did not find expected file '" + repoItem + "'");
+        }
+        return treeWalk.getObjectId(0);
+    }
+
+    /**
+     * Returns the root tree of a commit, parsing it only the first time it is asked for in this session.
+     *
+     * @param commit
+     * @return
+     * @throws IOException
+     */
+    private RevTree getCommitTree(String commit) throws IOException {
+        RevTree tree = commitTrees.get(commit);
+
+        if (null == tree) {
+            ObjectId commitId = repository.resolve(commit);
+
+            if (null == commitId) {
+                throw new IllegalStateException("Could not resolve commit '" + commit + "'");
             }
-        } finally {
-            if (null != reader) { reader.close(); }
+            tree = revWalk.parseCommit(commitId).getTree();
+            commitTrees.put(commit, tree);
+        }
+        return tree;
+    }
+
+    /**
+     * Returns the id of the tree for a directory below the given root tree, or null if there is no such directory.
+     * Every directory on the way down is cached, so sibling files only read the last level once.
+     *
+     * @param root
+     * @param directory
+     * @return
+     * @throws IOException
+     */
+    private ObjectId getSubtree(ObjectId root, String directory) throws IOException {
+        Map<String, ObjectId> directories = subtrees.get(root);
+
+        if (null == directories) {
+            directories = new HashMap<String, ObjectId>();
+            subtrees.put(root.copy(), directories);
+        }
+        if (directories.containsKey(directory)) {
+            return directories.get(directory);
+        }
+        ObjectId parent = root;
+        String name = directory;
+        int slash = directory.lastIndexOf('/');
+
+        if (slash > 0) {
+            parent = getSubtree(root, directory.substring(0, slash));
+            name = directory.substring(slash + 1);
+        }
+        ObjectId tree = null;
+
+        if (null != parent) {
+            TreeWalk treeWalk = TreeWalk.forPath(reader, name, parent);
+
+            if (null != treeWalk && FileMode.TREE.equals(treeWalk.getRawMode(0))) {
+                tree = treeWalk.getObjectId(0);
+            }
+        }
+        directories.put(directory, tree);
+        return tree;
+    }
+
+    /**
+     * Returns whether the repository holds the object with the specified id. Objects recorded in the deployed state
+     * ledger may have been pruned since.
+     *
+     * @param id
+     * @return
+     * @throws IOException
+     */
+    public boolean hasObject(ObjectId id) throws IOException {
+        return reader.has(id);
+    }
+
+    /**
+     * Returns the content of the blob with the specified id
+     *
+     * @param blobId
+     * @return
+     * @throws Exception
+     */
+    public byte[] getBlob(ObjectId blobId) throws Exception {
+        return getBlob(reader, blobId);
+    }
+
+    /**
+     * Returns the content of the blob with the specified id through the shared blob cache, reading it with the
+     * given reader on a miss
+     *
+     * @param blobReader
+     * @param blobId
+     * @return
+     * @throws Exception
+     */
+    byte[] getBlob(ObjectReader blobReader, ObjectId blobId) throws Exception {
+        byte[] data = SMABlobCache.get(blobId);
+
+        if (null != data) {
+            cacheHits.incrementAndGet();
+            return data;
         }
+        cacheMisses.incrementAndGet();
+        data = blobReader.open(blobId, Constants.OBJ_BLOB).getBytes();
+        SMABlobCache.put(blobId, data);
+
         return data;
     }
 
     /**
-     * Replicates ls-tree for the current commit.
+     * Returns the content of the blob with the specified id like getBlob, or null if the blob is too large to be
+     * read into memory ahead of being written. Such blobs are streamed with openBlob instead.
      *
-     * @return Map containing the full path and the data for all items in the repository.
+     * @param blobReader
+     * @param blobId
+     * @return
+     * @throws Exception
+     */
+    byte[] getSmallBlob(ObjectReader blobReader, ObjectId blobId) throws Exception {
+        byte[] data = SMABlobCache.get(blobId);
+
+        if (null != data) {
+            cacheHits.incrementAndGet();
+            return data;
+        }
+        ObjectLoader loader = blobReader.open(blobId, Constants.OBJ_BLOB);
+
+        if (loader.isLarge() || !SMABlobCache.isCacheable(loader.getSize())) {
+            return null;
+        }
+        cacheMisses.incrementAndGet();
+        data = loader.getBytes();
+        SMABlobCache.put(blobId, data);
+
+        return data;
+    }
+
+    /**
+     * Opens a stream over the content of the blob with the specified id. The stream is only valid while this
+     * session is open.
+     *
+     * @param blobId
+     * @return
+     * @throws Exception
+     */
+    public InputStream openBlob(ObjectId blobId) throws Exception {
+        byte[] data = SMABlobCache.get(blobId);
+
+        if (null != data) {
+            cacheHits.incrementAndGet();
+            return new ByteArrayInputStream(data);
+        }
+        cacheMisses.incrementAndGet();
+        ObjectLoader loader = reader.open(blobId, Constants.OBJ_BLOB);
+
+        if (loader.isLarge() || !SMABlobCache.isCacheable(loader.getSize())) {
+            return loader.openStream();
+        }
+        data = loader.getBytes();
+        SMABlobCache.put(blobId, data);
+
+        return new ByteArrayInputStream(data);
+    }
+
+    /**
+     * Returns a summary of how many blob reads of this session were served from the shared blob cache.
+     *
+     * @return
+     */
+    public String getCacheStatistics() {
+        return "Blob cache: " + cacheHits.get() + " hits, " + cacheMisses.get() + " misses";
+    }
+
+    /**
+     * Opens a new reader on the repository for use outside of this session, e.g. on another thread. The caller
+     * must close it.
+     *
+     * @return
+     */
+    ObjectReader newObjectReader() {
+        return repository.newObjectReader();
+    }
+
+    /**
+     * Replicates ls-tree -r for the source directory of the current commit. Blob ids come straight from the walk,
+     * so each tree is only read once.
+     *
+     * @return Map containing the full path and the blob id for all items in the repository.
      * @throws IOException
      */
-    public Map<String, byte[]> getAllMetadata() throws Exception {
-        Map<String, byte[]> contents = new HashMap<String, byte[]>();
-        ObjectReader reader = null;
-        try {
-            reader = repository.newObjectReader();
-            ObjectId commitId = repository.resolve(getCurrentCommit());
-            RevWalk revWalk = new RevWalk(reader);
-            RevCommit commit = revWalk.parseCommit(commitId);
-            RevTree tree = commit.getTree();
-            TreeWalk treeWalk = new TreeWalk(reader);
-            treeWalk.addTree(tree);
-            treeWalk.setRecursive(false);
-
-            while (treeWalk.next()) {
-                if (treeWalk.isSubtree()) {
-                    treeWalk.enterSubtree();
-                } else {
-                    String member = treeWalk.getPathString();
-                    if (member.contains(SOURCEDIR)) {
-                        byte[] data = getBlob(member, getCurrentCommit());
-                        contents.put(member, data);
-                    }
-                }
+    public Map<String, ObjectId> getAllMetadata() throws Exception {
+        Map<String, ObjectId> contents = new HashMap<String, ObjectId>();
+        TreeWalk treeWalk = new TreeWalk(reader);
+        treeWalk.addTree(getCommitTree(getCurrentCommit()));
+        treeWalk.setFilter(sourceFilter);
+        treeWalk.setRecursive(true);
+
+        while (treeWalk.next()) {
+            if (!FileMode.GITLINK.equals(treeWalk.getRawMode(0))) {
+                contents.put(treeWalk.getPathString(), treeWalk.getObjectId(0));
             }
-        } finally {
-            if (null != reader) { reader.close(); }
         }
         return contents;
     }
 
+    /**
+     * Returns the ids of the trees of the source directories in the current commit. Only directories outside of a
+     * source directory are searched for more of them.
+     *
+     * @return
+     * @throws Exception
+     */
+    public List<ObjectId> getSourceTreeIds() throws Exception {
+        return getSourceTreeIds(getCurrentCommit());
+    }
+
+    /**
+     * Returns the ids of the trees of the source directories in the given commit
+     *
+     * @param commit
+     * @return
+     * @throws Exception
+     */
+    public List<ObjectId> getSourceTreeIds(String commit) throws Exception {
+        List<ObjectId> sourceTrees = new ArrayList<ObjectId>();
+        TreeWalk treeWalk = new TreeWalk(reader);
+        treeWalk.addTree(getCommitTree(commit));
+
+        while (treeWalk.next()) {
+            if (!treeWalk.isSubtree()) {
+                continue;
+            }
+            if (sourceFilter.isSourceRoot(treeWalk.getPathString())) {
+                sourceTrees.add(treeWalk.getObjectId(0));
+            } else {
+                treeWalk.enterSubtree();
+            }
+        }
+        return sourceTrees;
+    }
+
+    /**
+     * Returns the id of the tree of the source directory in the current commit, or null if there is none or the
+     * repository has more than one.
+     *
+     * @return
+     * @throws Exception
+     */
+    public ObjectId getSourceTreeId() throws Exception {
+        return getSourceTreeId(getCurrentCommit());
+    }
+
+    /**
+     * Returns the id of the tree of the source directory in the given commit, or null if there is none or the
+     * repository has more than one.
+     *
+     * @param commit
+     * @return
+     * @throws Exception
+     */
+    public ObjectId getSourceTreeId(String commit) throws Exception {
+        List<ObjectId> sourceTrees = getSourceTreeIds(commit);
+
+        return sourceTrees.size() == 1 ? sourceTrees.get(0) : null;
+    }
+
+    /**
+     * Returns the names of all Apex classes in the source directories of the current commit, read from the trees
+     * alone.
+     *
+     * @return
+     * @throws Exception
+     */
+    public Set<String> getApexClassNames() throws Exception {
+        List<ObjectId> sourceTrees = getSourceTreeIds();
+
+        if (sourceTrees.size() == 1) {
+            return SMAApexClassIndex.getClassNames(reader, sourceTrees.get(0));
+        }
+        Set<String> names = new HashSet<String>();
+        for (ObjectId sourceTree : sourceTrees) {
+            names.addAll(SMAApexClassIndex.getClassNames(reader, sourceTree));
+        }
+        return names;
+    }
+
     /**
      * Creates an updated package.xml file and commits it to the repository
      *
@@ -308,31 +872,24 @@ public class SMAGit {
     }
 
     /**
-     * Returns the diff between two commits.
+     * Returns the diff between two commits. Only paths and blob ids are compared; no patch is formatted, so the
+     * content of the changed files is only loaded to score inexact renames.
      *
      * @return List that contains DiffEntry objects of the changes made between the previous and current commits.
      * @throws Exception
      */
     private void getDiffs() throws Exception {
-        OutputStream out = new ByteArrayOutputStream();
-        CanonicalTreeParser oldTree = getTree(getPreviousCommit());
-        CanonicalTreeParser newTree = getTree(getCurrentCommit());
-        DiffCommand diff = git.diff().setOutputStream(out).setOldTree(oldTree).setNewTree(newTree);
-        diffs = diff.call();
-    }
-
-    /**
-     * Returns the Canonical Tree Parser representation of a commit.
-     *
-     * @param commit Commit in the repository.
-     * @return CanonicalTreeParser representing the tree for the commit.
-     * @throws IOException
-     */
-    private CanonicalTreeParser getTree(String commit) throws IOException {
-        CanonicalTreeParser tree = new CanonicalTreeParser();
-        ObjectReader reader = repository.newObjectReader();
-        ObjectId head = repository.resolve(commit + "^{tree}");
-        tree.reset(reader, head);
-        return tree;
+        DiffFormatter formatter = new DiffFormatter(DisabledOutputStream.INSTANCE);
+        try {
+            formatter.setRepository(repository);
+            formatter.setDetectRenames(null != renameScore);
+            if (null != renameScore) {
+                formatter.getRenameDetector().setRenameScore(renameScore);
+            }
+            formatter.setPathFilter(sourceFilter);
+            diffs = formatter.scan(getCommitTree(getPreviousCommit()), getCommitTree(getCurrentCommit()));
+        } finally {
+            formatter.close();
+        }
     }
 }
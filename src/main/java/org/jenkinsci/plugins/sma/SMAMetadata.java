@@ -1,6 +1,8 @@
 package org.jenkinsci.plugins.sma;
 
-import java.util.ArrayList;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
 import java.util.HashSet;
 import java.util.List;
 import java.util.logging.Logger;
@@ -8,20 +10,22 @@ import java.util.logging.Logger;
 /**
  * Creates an object representation of a Salesforce Metadata file.
  *
+ * Type information lives in a SMAMetadataType shared by every file of that type, and directory paths are interned,
+ * so each instance only owns its member name and a handle to its body, which is read when it is needed. Files that
+ * are not of a Metadata API type all share SMAMetadataType.INVALID and keep an interned copy of their extension.
+ *
  */
 public class SMAMetadata implements Comparable<SMAMetadata>
 {
     private static final Logger LOG = Logger.getLogger(SMAMetadata.class.getName());
+    private static final Interner<String> PATHS = Interners.newWeakInterner();
+    private static final Interner<String> EXTENSIONS = Interners.newWeakInterner();
 
-    private String extension;
-    private String container;
-    private String member;
-    private String metadataType;
-    private String path;
-    private boolean destructible;
-    private boolean valid;
-    private boolean metaxml;
-    private byte[] body;
+    private final SMAMetadataType type;
+    private final String extension;
+    private final String member;
+    private final String path;
+    private final SMABlob body;
 
     /**
      * Constructor for SMAMetadata object
@@ -46,17 +50,59 @@ public class SMAMetadata implements Comparable<SMAMetadata>
                        boolean metaxml,
                        byte[] body)
     {
-        this.extension = extension;
-        this.container = container;
+        this(
+            new SMAMetadataType(extension, container, metadataType, destructible, valid, metaxml),
+            member,
+            path,
+            null == body ? null : new SMABlob(body)
+        );
+    }
+
+    /**
+     * Constructor for SMAMetadata object sharing the provided type
+     *
+     * @param type
+     * @param member
+     * @param path
+     * @param body
+     */
+    public SMAMetadata(SMAMetadataType type,
+                       String member,
+                       String path,
+                       SMABlob body)
+    {
+        this(type, type.getExtension(), member, path, body);
+    }
+
+    /**
+     * Constructor for SMAMetadata object sharing the provided type, with an extension of its own
+     *
+     * @param type
+     * @param extension
+     * @param member
+     * @param path
+     * @param body
+     */
+    public SMAMetadata(SMAMetadataType type,
+                       String extension,
+                       String member,
+                       String path,
+                       SMABlob body)
+    {
+        this.type = type;
+        this.extension = type.getExtension().equals(extension) ? type.getExtension() : EXTENSIONS.intern(extension);
         this.member = member;
-        this.metadataType = metadataType;
-        this.path = path;
-        this.destructible = destructible;
-        this.valid = valid;
-        this.metaxml = metaxml;
+        this.path = PATHS.intern(path);
         this.body = body;
     }
 
+    /**
+     * Returns the shared type descriptor for this metadata file.
+     *
+     * @return The SMAMetadataType of the metadata file.
+     */
+    public SMAMetadataType getType() { return type; }
+
     /**
      * Returns the extension for this metadata file.
      *
@@ -69,7 +115,7 @@ public class SMAMetadata implements Comparable<SMAMetadata>
      *
      * @return A string representation of the parent container for this metadata file.
      */
-    public String getContainer() { return container; }
+    public String getContainer() { return type.getContainer(); }
 
     /**
      * Returns the path of the metadata file.
@@ -90,28 +136,28 @@ public class SMAMetadata implements Comparable<SMAMetadata>
      *
      * @return A string representation of the metadata file's type.
      */
-    public String getMetadataType() { return metadataType; }
+    public String getMetadataType() { return type.getMetadataType(); }
 
     /**
      * Returns whether or not this metadata object can be deleted using the Salesforce API.
      *
      * @return A boolean that describes whether or not this metadata object can be deleted using the Salesforce API.
      */
-    public boolean isDestructible() { return destructible; }
+    public boolean isDestructible() { return type.isDestructible(); }
 
     /**
      * Returns whether or not this metadata object is a valid member of the Salesforce API.
      *
      * @return A boolean that describes wheter or not this metadata object is a valid member of the Salesforce API.
      */
-    public boolean isValid() { return valid; }
+    public boolean isValid() { return type.isValid(); }
 
     /**
      * Returns whether or not this metadata object has an accompanying -meta.xml file.
      *
      * @return
      */
-    public boolean hasMetaxml() { return metaxml; }
+    public boolean hasMetaxml() { return type.hasMetaxml(); }
 
     /**
      * A toString() like method that returns a concatenation of the name and extension of the metadata object.
@@ -119,19 +165,27 @@ public class SMAMetadata implements Comparable<SMAMetadata>
      * @return A string of the name and extension of the metadata object.
      */
     public String getFullName() {
-        return member + "." + extension;
+        return member + "." + getExtension();
     }
 
     public String toString() {
-        return container + "/" + getFullName();
+        return getContainer() + "/" + getFullName();
     }
 
     /**
-     * The blob data in String format of the metadata's content.
+     * The blob data of the metadata's content. Git backed bodies are read from the repository on every call.
+     *
+     * @return
+     * @throws Exception
+     */
+    public byte[] getBody() throws Exception { return null == body ? null : body.getBytes(); }
+
+    /**
+     * The handle to the metadata's content.
      *
      * @return
      */
-    public byte[] getBody() { return body; }
+    public SMABlob getBlob() { return body; }
 
     /**
      * For sorting metadata by extension followed by member
@@ -142,7 +196,7 @@ public class SMAMetadata implements Comparable<SMAMetadata>
     @Override
     public int compareTo(SMAMetadata comparison)
     {
-        int extCompare = this.extension.compareToIgnoreCase(comparison.extension);
+        int extCompare = this.getExtension().compareToIgnoreCase(comparison.getExtension());
         return extCompare == 0 ? this.member.compareToIgnoreCase(comparison.member) : extCompare;
     }
 
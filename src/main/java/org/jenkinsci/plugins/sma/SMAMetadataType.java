@@ -0,0 +1,106 @@
+package org.jenkinsci.plugins.sma;
+
+/**
+ * Immutable description of a single extension entry in the salesforceMetadata.xml document. One instance per
+ * extension is shared by every SMAMetadata of that type.
+ *
+ */
+public final class SMAMetadataType {
+    /**
+     * The type shared by every file whose extension is not a member of the Salesforce API. Its extension is empty;
+     * such files keep their own.
+     */
+    public static final SMAMetadataType INVALID = new SMAMetadataType("", "empty", "Invalid", false, false, false);
+
+    private final String extension;
+    private final String container;
+    private final String metadataType;
+    private final boolean destructible;
+    private final boolean valid;
+    private final boolean metaxml;
+
+    /**
+     * Constructor for a valid SMAMetadataType object
+     *
+     * @param extension
+     * @param container
+     * @param metadataType
+     * @param destructible
+     * @param metaxml
+     */
+    public SMAMetadataType(String extension,
+                           String container,
+                           String metadataType,
+                           boolean destructible,
+                           boolean metaxml)
+    {
+        this(extension, container, metadataType, destructible, true, metaxml);
+    }
+
+    /**
+     * Constructor for SMAMetadataType object
+     *
+     * @param extension
+     * @param container
+     * @param metadataType
+     * @param destructible
+     * @param valid
+     * @param metaxml
+     */
+    public SMAMetadataType(String extension,
+                           String container,
+                           String metadataType,
+                           boolean destructible,
+                           boolean valid,
+                           boolean metaxml)
+    {
+        this.extension = extension;
+        this.container = container;
+        this.metadataType = metadataType;
+        this.destructible = destructible;
+        this.valid = valid;
+        this.metaxml = metaxml;
+    }
+
+    /**
+     * Returns the file extension this type is registered under.
+     *
+     * @return extension
+     */
+    public String getExtension() { return extension; }
+
+    /**
+     * Returns the parent container (directory) for this type.
+     *
+     * @return container
+     */
+    public String getContainer() { return container; }
+
+    /**
+     * Returns the Metadata API name of this type.
+     *
+     * @return metadataType
+     */
+    public String getMetadataType() { return metadataType; }
+
+    /**
+     * Returns whether or not members of this type can be deleted using the Salesforce API.
+     *
+     * @return destructible
+     */
+    public boolean isDestructible() { return destructible; }
+
+    /**
+     * Returns whether or not this type is a valid member of the Salesforce API.
+     *
+     * @return valid
+     */
+    public boolean isValid() { return valid; }
+
+    /**
+     * Returns whether or not members of this type have an accompanying -meta.xml file.
+     *
+     * @return metaxml
+     */
+    public boolean hasMetaxml() { return metaxml; }
+}
@@ -1,6 +1,5 @@
 package org.jenkinsci.plugins.sma;
 
-import org.apache.commons.io.FilenameUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -8,56 +7,144 @@ import org.w3c.dom.NodeList;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
-import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
 /**
  * Class for the salesforceMetadata.xml document that contains Salesforce Metadata API information.
  *
+ * The document is parsed once into an immutable open addressing table keyed by extension, so classifying a file
+ * is a single hash probe over the characters of its path. The table is built lazily, shared by every build in the
+ * process and never mutated, so lookups take no locks.
+ *
  */
 public class SMAMetadataTypes {
     private static final Logger LOG = Logger.getLogger(SMAMetadataTypes.class.getName());
 
     private static final ClassLoader loader = SMAMetadataTypes.class.getClassLoader();
-    private static String pathToResource = loader.getResource("org/jenkinsci/plugins/sma/salesforceMetadata.xml").toString();
-    private static Document doc;
-    private static Boolean docAlive = false;
+    private static final String RESOURCE_DIR = "org/jenkinsci/plugins/sma/";
+    private static final String DEFAULT_RESOURCE = RESOURCE_DIR + "salesforceMetadata.xml";
+    private static final AtomicReference<SMAMetadataTypes> defaults = new AtomicReference<SMAMetadataTypes>();
+
+    private final String version;
+    private final SMAMetadataType[] table;
+    private final int mask;
 
     /**
-     * Initializes the Document representation of the salesforceMetadata.xml file
+     * Builds the extension table for the provided types
      *
+     * @param version
+     * @param types
+     */
+    private SMAMetadataTypes(String version, List<SMAMetadataType> types) {
+        this.version = version;
+
+        int capacity = 2;
+        while (capacity < types.size() * 2) {
+            capacity <<= 1;
+        }
+        this.table = new SMAMetadataType[capacity];
+        this.mask = capacity - 1;
+
+        for (SMAMetadataType type : types) {
+            String extension = type.getExtension();
+            int slot = spread(extension.hashCode()) & mask;
+
+            while (table[slot] != null) {
+                if (table[slot].getExtension().equals(extension)) {
+                    LOG.warning("Duplicate extension '" + extension + "' in salesforceMetadata.xml, keeping the first");
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (table[slot] == null) {
+                table[slot] = type;
+            }
+        }
+    }
+
+    /**
+     * Parses a salesforceMetadata.xml document into an extension index
+     *
+     * @param resource
+     * @return SMAMetadataTypes
      * @throws Exception
      */
-    private static void initDocument() throws Exception {
+    private static SMAMetadataTypes parse(URL resource) throws Exception {
         DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
         DocumentBuilder dbBuilder = dbFactory.newDocumentBuilder();
-        doc = dbBuilder.parse(pathToResource);
-        docAlive = true;
+        Document doc = dbBuilder.parse(resource.toString());
+        doc.getDocumentElement().normalize();
+
+        String version = doc.getDocumentElement().getAttribute("API");
+        List<SMAMetadataType> types = new ArrayList<SMAMetadataType>();
+        NodeList extNodes = doc.getElementsByTagName("extension");
+
+        for (int iterator = 0; iterator < extNodes.getLength(); iterator++) {
+            Element element = (Element) extNodes.item(iterator);
+
+            types.add(new SMAMetadataType(
+                element.getAttribute("name"),
+                getChildText(element, "container"),
+                getChildText(element, "metadata"),
+                Boolean.parseBoolean(getChildText(element, "destructible")),
+                Boolean.parseBoolean(getChildText(element, "metaxml"))
+            ));
+        }
+        return new SMAMetadataTypes(version, types);
     }
 
     /**
-     * Returns the Salesforce Metadata API Version
+     * Returns the text of the first child element with the given tag, or null if the extension does not define it
      *
-     * @return version
+     * @param element
+     * @param tag
+     * @return text
      */
-    public static String getAPIVersion() throws Exception {
-        if (!docAlive) {
-            initDocument();
-        }
-        String version = null;
+    private static String getChildText(Element element, String tag) {
+        Node child = element.getElementsByTagName(tag).item(0);
 
-        doc.getDocumentElement().normalize();
+        return null == child ? null : child.getTextContent();
+    }
 
-        NodeList verNodes = doc.getElementsByTagName("version");
+    /**
+     * Returns the types from the bundled salesforceMetadata.xml file. Builds racing to parse it first all get the
+     * same instance.
+     *
+     * @return SMAMetadataTypes
+     * @throws Exception
+     */
+    public static SMAMetadataTypes getDefault() throws Exception {
+        SMAMetadataTypes types = defaults.get();
 
-        //There should only be one node in this list
-        for (int iterator = 0; iterator < verNodes.getLength(); iterator++) {
-            Node curNode = verNodes.item(iterator);
-            Element verElement = (Element) curNode;
-            //If for some reason there is more than one, get the first one
-            version = verElement.getAttribute("API");
+        if (null == types) {
+            defaults.compareAndSet(null, parse(loader.getResource(DEFAULT_RESOURCE)));
+            types = defaults.get();
         }
-        return version;
+        return types;
+    }
+
+    /**
+     * Returns the Salesforce Metadata API Version
+     *
+     * @return version
+     */
+    public static String getAPIVersion() throws Exception {
+        return getDefault().getVersion();
+    }
+
+    /**
+     * Returns the type registered for the provided extension, or null if the extension is not a Metadata API type.
+     *
+     * @param extension
+     * @return SMAMetadataType
+     * @throws Exception
+     */
+    public static SMAMetadataType getType(String extension) throws Exception {
+        return getDefault().lookupType(extension);
     }
 
     /**
@@ -68,45 +155,103 @@ public class SMAMetadataTypes {
      * @throws Exception
      */
     public static SMAMetadata createMetadataObject(String filepath, byte[] data) throws Exception {
-        if (!docAlive) {
-            initDocument();
+        return getDefault().createMetadata(filepath, null == data ? null : new SMABlob(data));
+    }
+
+    /**
+     * Creates an SMAMetadata object whose content is read from the provided blob when it is needed.
+     *
+     * @param filepath
+     * @param blob
+     * @return SMAMetadata
+     * @throws Exception
+     */
+    public static SMAMetadata createMetadataObject(String filepath, SMABlob blob) throws Exception {
+        return getDefault().createMetadata(filepath, blob);
+    }
+
+    /**
+     * Returns the Metadata API version of these types
+     *
+     * @return version
+     */
+    public String getVersion() { return version; }
+
+    /**
+     * Returns the type registered for the provided extension, or null if the extension is not a Metadata API type.
+     *
+     * @param extension
+     * @return SMAMetadataType
+     */
+    public SMAMetadataType lookupType(String extension) {
+        return lookup(extension, 0, extension.length());
+    }
+
+    /**
+     * Returns the type of the file with the provided name, or null if its extension is not a Metadata API type.
+     *
+     * @param filename
+     * @return SMAMetadataType
+     */
+    public SMAMetadataType lookupFileType(String filename) {
+        int dot = filename.lastIndexOf('.');
+
+        return dot < 0 ? null : lookup(filename, dot + 1, filename.length());
+    }
+
+    /**
+     * Creates an SMAMetadata object from a string representation of a file's path and filename.
+     *
+     * @param filepath
+     * @param blob
+     * @return SMAMetadata
+     */
+    public SMAMetadata createMetadata(String filepath, SMABlob blob) {
+        int nameStart = Math.max(filepath.lastIndexOf('/'), filepath.lastIndexOf('\\')) + 1;
+        int dot = filepath.lastIndexOf('.');
+        int memberEnd = dot < nameStart ? filepath.length() : dot;
+        int extensionStart = dot < nameStart ? filepath.length() : dot + 1;
+
+        String member = filepath.substring(nameStart, memberEnd);
+        String path = filepath.substring(0, nameStart);
+        SMAMetadataType type = lookup(filepath, extensionStart, filepath.length());
+
+        if (null == type) {
+            return new SMAMetadata(SMAMetadataType.INVALID, filepath.substring(extensionStart), member, path, blob);
         }
-        String container = "empty";
-        String metadataType = "Invalid";
-        boolean destructible = false;
-        boolean valid = false;
-        boolean metaxml = false;
-
-        File file = new File(filepath);
-        String object = file.getName();
-        String member = FilenameUtils.removeExtension(object);
-        String extension = FilenameUtils.getExtension(filepath);
-        String path = FilenameUtils.getFullPath(filepath);
-
-        //Normalize the salesforceMetadata.xml configuration file
-        doc.getDocumentElement().normalize();
+        return new SMAMetadata(type, member, path, blob);
+    }
 
-        NodeList extNodes = doc.getElementsByTagName("extension");
+    /**
+     * Finds the type whose extension equals the characters of source between start and end
+     *
+     * @param source
+     * @param start
+     * @param end
+     * @return SMAMetadataType
+     */
+    private SMAMetadataType lookup(String source, int start, int end) {
+        int length = end - start;
+        int hash = 0;
 
-        //Get the node with the corresponding extension and get the relevant information for
-        //creating the SMAMetadata object
-        for (int iterator = 0; iterator < extNodes.getLength(); iterator++) {
-            Node curNode = extNodes.item(iterator);
-
-            Element element = (Element) curNode;
-            if (element.getAttribute("name").equals(extension)) {
-                container = element.getElementsByTagName("container").item(0).getTextContent();
-                metadataType = element.getElementsByTagName("metadata").item(0).getTextContent();
-                destructible = Boolean.parseBoolean(
-                    element.getElementsByTagName("destructible").item(0).getTextContent()
-                );
-                valid = true;
-                metaxml = Boolean.parseBoolean(element.getElementsByTagName("metaxml").item(0).getTextContent());
-                break;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+        for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+            SMAMetadataType type = table[slot];
+
+            if (null == type) {
+                return null;
+            }
+            String extension = type.getExtension();
+
+            if (extension.length() == length && source.regionMatches(start, extension, 0, length)) {
+                return type;
             }
         }
-        return new SMAMetadata(
-            extension, container, member, metadataType, path, destructible, valid, metaxml, data
-        );
     }
-}
\ No newline at end of file
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
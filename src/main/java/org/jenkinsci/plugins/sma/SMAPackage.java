@@ -8,9 +8,10 @@ import com.sforce.ws.parser.XmlOutputStream;
 import javax.xml.namespace.QName;
 import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Wrapper for com.sforce.soap.metadata.Package.
@@ -89,13 +90,14 @@ public class SMAPackage
     }
 
     /**
-     * Sorts the metadata into types and members for the manifest
+     * Sorts the metadata into types and members for the manifest. Types and members are sorted by name so the same
+     * contents always give the same manifest.
      *
      * @return
      */
     private List<PackageTypeMembers> determinePackageTypes() {
         List<PackageTypeMembers> types = new ArrayList<PackageTypeMembers>();
-        Map<String, List<String>> contentsByType = new HashMap<String, List<String>>();
+        Map<String, List<String>> contentsByType = new TreeMap<String, List<String>>();
 
         // Sort the metadata objects by metadata type
         for (SMAMetadata mdObject : contents) {
@@ -110,9 +112,12 @@ public class SMAPackage
         }
         // Put the members into list of PackageTypeMembers
         for (String metadataType : contentsByType.keySet()) {
+            List<String> typeMembers = contentsByType.get(metadataType);
+            Collections.sort(typeMembers);
+
             PackageTypeMembers members = new PackageTypeMembers();
             members.setName(metadataType);
-            members.setMembers(contentsByType.get(metadataType).toArray(new String[0]));
+            members.setMembers(typeMembers.toArray(new String[0]));
             types.add(members);
         }
         return types;
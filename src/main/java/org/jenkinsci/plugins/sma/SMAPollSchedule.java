@@ -0,0 +1,77 @@
+package org.jenkinsci.plugins.sma;
+
+import java.util.Random;
+
+/**
+ * Decides how long to wait between deploy status checks. The wait starts short and doubles while the deployment
+ * makes no progress, up to a ceiling; it halves again whenever more components or tests are done than at the
+ * previous check. Every wait is jittered, and none runs past the deadline.
+ *
+ */
+public class SMAPollSchedule {
+    public static final long MIN_WAIT = 1000;
+
+    private final long minWait;
+    private final long maxWait;
+    private final long deadline;
+    private final Random random;
+
+    private long interval;
+    private long lastProgress = -1;
+
+    /**
+     * Constructor for a schedule that starts now
+     *
+     * @param minWait Shortest wait in milliseconds
+     * @param maxWait Longest wait in milliseconds
+     * @param timeout Milliseconds after which the schedule expires
+     * @param random Source of the jitter
+     */
+    public SMAPollSchedule(long minWait, long maxWait, long timeout, Random random) {
+        this.minWait = Math.max(1, Math.min(minWait, maxWait));
+        this.maxWait = Math.max(this.minWait, maxWait);
+        this.deadline = System.currentTimeMillis() + Math.max(0, timeout);
+        this.random = random;
+        this.interval = this.minWait;
+    }
+
+    /**
+     * Returns how long to wait before the next check, given the progress seen at the last one
+     *
+     * @param progress Number of components and tests processed so far
+     * @return
+     */
+    public long next(long progress) {
+        if (lastProgress >= 0) {
+            interval = progress > lastProgress ? Math.max(minWait, interval / 2) : Math.min(maxWait, interval * 2);
+        }
+        lastProgress = progress;
+
+        // Wait between half and all of the interval, so concurrent builds do not poll in step
+        long half = interval / 2;
+        long wait = half + (long) (random.nextDouble() * (interval - half + 1));
+
+        return Math.max(0, Math.min(Math.min(wait, interval), getRemaining()));
+    }
+
+    /**
+     * Returns the current interval, before jitter
+     *
+     * @return
+     */
+    public long getInterval() { return interval; }
+
+    /**
+     * Returns the milliseconds left until the deadline
+     *
+     * @return
+     */
+    public long getRemaining() { return Math.max(0, deadline - System.currentTimeMillis()); }
+
+    /**
+     * Returns whether the deadline has passed
+     *
+     * @return
+     */
+    public boolean isExpired() { return System.currentTimeMillis() >= deadline; }
+}
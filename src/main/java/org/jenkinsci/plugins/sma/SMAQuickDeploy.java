@@ -0,0 +1,59 @@
+package org.jenkinsci.plugins.sma;
+
+import java.io.PrintStream;
+import java.util.concurrent.Callable;
+
+/**
+ * Deploys a package from a recent validation of it when there is one. If the org does not quick deploy the
+ * validation, whether it rejects it outright or the quick deploy fails afterwards, the validation is forgotten and
+ * the package is deployed as usual.
+ *
+ */
+public class SMAQuickDeploy {
+    private final SMADeployLedger ledger;
+    private final PrintStream console;
+    private boolean quickDeployed;
+
+    /**
+     * Constructor for quick deploys of the validations recorded in the given ledger
+     *
+     * @param ledger
+     * @param console
+     */
+    public SMAQuickDeploy(SMADeployLedger ledger, PrintStream console) {
+        this.ledger = ledger;
+        this.console = console;
+    }
+
+    /**
+     * Quick deploys the given validation, or deploys the package as usual if there is none or it was not deployed
+     *
+     * @param validationId AsyncResult Id of the validation, or null
+     * @param quickDeploy Quick deploys the validation; returns false if it was not deployed
+     * @param deploy Deploys the package as usual
+     * @return Whether the deployment succeeded
+     * @throws Exception
+     */
+    public boolean deploy(String validationId, Callable<Boolean> quickDeploy, Callable<Boolean> deploy) throws Exception {
+        quickDeployed = false;
+
+        if (null != validationId) {
+            console.println("[SMA] Quick deploying validation " + validationId);
+
+            if (quickDeploy.call()) {
+                quickDeployed = true;
+                return true;
+            }
+            console.println("[SMA] Validation " + validationId + " was not quick deployed, deploying the package as usual");
+            ledger.clearValidation();
+        }
+        return deploy.call();
+    }
+
+    /**
+     * Returns whether the last deployment was a quick deploy
+     *
+     * @return
+     */
+    public boolean getQuickDeployed() { return quickDeployed; }
+}
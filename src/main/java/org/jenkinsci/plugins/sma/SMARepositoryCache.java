@@ -0,0 +1,139 @@
+package org.jenkinsci.plugins.sma;
+
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process wide cache of open repositories keyed by git directory, so consecutive and concurrent builds of the same
+ * workspace share one Repository and the pack state JGit keeps for it. Repositories are reference counted; the ones
+ * nobody holds are closed once idle for too long, when too many are open, or when their workspace was removed.
+ *
+ */
+public final class SMARepositoryCache {
+    public static final long DEFAULT_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+    private static final int MAX_REPOSITORIES = 8;
+
+    private static long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    private static final Map<File, Entry> REPOSITORIES = new LinkedHashMap<File, Entry>(16, 0.75f, true);
+
+    private SMARepositoryCache() {}
+
+    /**
+     * Returns the repository for a git directory, opening it if it is not cached. Every call must be paired with
+     * a call to release.
+     *
+     * @param gitDir
+     * @return Repository
+     * @throws IOException
+     */
+    public static synchronized Repository acquire(File gitDir) throws IOException {
+        File key = gitDir.getCanonicalFile();
+        long stamp = stamp(key);
+        Entry entry = REPOSITORIES.get(key);
+
+        // The workspace was wiped and cloned again since the repository was opened
+        if (null != entry && 0 == entry.references && entry.stamp != stamp) {
+            REPOSITORIES.remove(key);
+            entry.repository.close();
+            entry = null;
+        }
+        if (null == entry) {
+            Repository repository = new FileRepositoryBuilder().setGitDir(key).readEnvironment().build();
+            entry = new Entry(repository, stamp);
+            REPOSITORIES.put(key, entry);
+        }
+        entry.references++;
+        evict(System.currentTimeMillis());
+
+        return entry.repository;
+    }
+
+    /**
+     * Gives back a repository obtained from acquire.
+     *
+     * @param repository
+     */
+    public static synchronized void release(Repository repository) {
+        Entry entry = REPOSITORIES.get(repository.getDirectory());
+
+        if (null == entry || entry.repository != repository) {
+            repository.close();
+            return;
+        }
+        entry.references--;
+        entry.released = System.currentTimeMillis();
+        evict(entry.released);
+    }
+
+    /**
+     * Sets how long a repository nobody holds stays open. With 0 it is closed as soon as its last user releases it.
+     *
+     * @param millis
+     */
+    public static synchronized void setIdleTimeout(long millis) {
+        idleTimeout = Math.max(0, millis);
+        evict(System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the number of repositories currently open in the cache.
+     *
+     * @return
+     */
+    public static synchronized int size() {
+        return REPOSITORIES.size();
+    }
+
+    /**
+     * Closes every repository that is not in use.
+     */
+    public static synchronized void clear() {
+        evict(Long.MAX_VALUE);
+    }
+
+    /**
+     * Closes unused repositories whose workspace was removed or that have been idle past the timeout, then the least
+     * recently used unused ones while the cache is over its bound.
+     *
+     * @param now
+     */
+    private static void evict(long now) {
+        int open = REPOSITORIES.size();
+
+        for (Iterator<Map.Entry<File, Entry>> it = REPOSITORIES.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<File, Entry> item = it.next();
+            Entry entry = item.getValue();
+
+            if (0 == entry.references && (now - entry.released >= idleTimeout || open > MAX_REPOSITORIES
+                    || !item.getKey().isDirectory())) {
+                it.remove();
+                entry.repository.close();
+                open--;
+            }
+        }
+    }
+
+    private static long stamp(File gitDir) {
+        return new File(gitDir, "config").lastModified();
+    }
+
+    private static class Entry {
+        private final Repository repository;
+        private final long stamp;
+        private int references;
+        private long released;
+
+        private Entry(Repository repository, long stamp) {
+            this.repository = repository;
+            this.stamp = stamp;
+        }
+    }
+}
@@ -2,8 +2,11 @@ package org.jenkinsci.plugins.sma;
 
 import hudson.EnvVars;
 import org.apache.commons.configuration.ConfigurationException;
+import org.eclipse.jgit.lib.ObjectId;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.logging.Logger;
 
@@ -11,14 +14,17 @@ import java.util.logging.Logger;
  * Class that contains all of the configuration pertinent to the running job
  *
  */
-public class SMARunner {
+public class SMARunner implements Closeable {
     private static final Logger LOG = Logger.getLogger(SMARunner.class.getName());
 
     private Boolean deployAll = false;
+    private Boolean shaOverride = false;
     private String currentCommit;
     private String previousCommit;
     private String rollbackLocation;
     private SMAGit git;
+    private SMADeployLedger ledger;
+    private Map<String, ObjectId> deployedState;
     private String pathToWorkspace;
     private List<SMAMetadata> deployMetadata = new ArrayList<SMAMetadata>();
     private List<SMAMetadata> deleteMetadata = new ArrayList<SMAMetadata>();
@@ -30,11 +36,21 @@ public class SMARunner {
      *
      * @param jobVariables
      * @param prTargetBranch
+     * @param orgSettings
+     * @param renameScore Similarity threshold for rename detection, or null to disable it
+     * @param ledger Deployed state of the target org, or null to always diff against a commit
+     * @param sourceRoot Directory path of the source files in the repository, or null for any src directory
      * @throws Exception
      */
-    public SMARunner(EnvVars jobVariables, String prTargetBranch, SMAJenkinsCIOrgSettings orgSettings) throws Exception {
+    public SMARunner(EnvVars jobVariables,
+                     String prTargetBranch,
+                     SMAJenkinsCIOrgSettings orgSettings,
+                     Integer renameScore,
+                     SMADeployLedger ledger,
+                     String sourceRoot) throws Exception {
         // Get envvars to initialize SMAGit
-        Boolean shaOverride  = false;
+        Boolean forceDeployAll = false;
+        this.ledger          = ledger;
         this.pathToWorkspace = jobVariables.get("WORKSPACE");
         String jobName       = jobVariables.get("JOB_NAME");
         String buildNumber   = jobVariables.get("BUILD_NUMBER");
@@ -48,6 +64,7 @@ public class SMARunner {
         }
         if (jobVariables.containsKey("SMA_DEPLOY_ALL_METADATA")) {
             deployAll = Boolean.valueOf(jobVariables.get("SMA_DEPLOY_ALL_METADATA"));
+            forceDeployAll = deployAll;
         }
         if (jobVariables.containsKey("SMA_PREVIOUS_COMMIT_OVERRIDE")
                 && !jobVariables.get("SMA_PREVIOUS_COMMIT_OVERRIDE").isEmpty()
@@ -58,14 +75,20 @@ public class SMARunner {
         // Configure using pull request logic
         if (!prTargetBranch.isEmpty() && !shaOverride) {
             deployAll = false;
-            git = new SMAGit(pathToWorkspace, prTargetBranch, SMAGit.Mode.PRB);
+            git = new SMAGit(pathToWorkspace, prTargetBranch, SMAGit.Mode.PRB, renameScore, sourceRoot);
             previousCommit = git.getPreviousCommit();
             
+        } else if (!shaOverride && !forceDeployAll && null != ledger && ledger.exists()) { // Configure against what was last deployed
+            deployAll = false;
+            deployedState = ledger.load();
+            git = new SMAGit(pathToWorkspace, deployedState, renameScore, sourceRoot);
+            previousCommit = null;
+
         } else if (deployAll) { // Configure for all the metadata
-            git = new SMAGit(pathToWorkspace, null, SMAGit.Mode.INI);
+            git = new SMAGit(pathToWorkspace, null, SMAGit.Mode.INI, null, sourceRoot);
 
         } else { // Configure using the previous successful commit for this job
-            git = new SMAGit(pathToWorkspace, previousCommit, SMAGit.Mode.STD);
+            git = new SMAGit(pathToWorkspace, previousCommit, SMAGit.Mode.STD, renameScore, sourceRoot);
         }
         currentCommit    = git.getCurrentCommit();
         rollbackLocation = pathToWorkspace + "/sma/rollback" + jobName + buildNumber + ".zip";
@@ -78,6 +101,31 @@ public class SMARunner {
      */
     public Boolean getDeployAll() { return deployAll; }
 
+    /**
+     * Returns whether the previous commit was set through SMA_PREVIOUS_COMMIT_OVERRIDE
+     *
+     * @return shaOverride
+     */
+    public Boolean getShaOverride() { return shaOverride; }
+
+    /**
+     * Returns whether the changes of this job were computed against the deployed state ledger of the org
+     *
+     * @return
+     */
+    public boolean getUsesLedger() { return null != deployedState; }
+
+    /**
+     * Records the current tree as the deployed state of the org. Only to be called after a successful deployment.
+     *
+     * @throws Exception
+     */
+    public void recordDeployment() throws Exception {
+        if (null != ledger) {
+            ledger.record(git.getAllMetadata());
+        }
+    }
+
     /**
      * Returns the SMAMetadata that is going to be deployed in this job
      *
@@ -88,7 +136,7 @@ public class SMARunner {
         if (deployAll) {
             deployMetadata = buildMetadataList(git.getAllMetadata());
         } else if (deployMetadata.isEmpty()) {
-            Map<String, byte[]> positiveChanges = git.getNewMetadata();
+            Map<String, ObjectId> positiveChanges = git.getNewMetadata();
             positiveChanges.putAll(git.getUpdatedMetadata());
 
             deployMetadata = buildMetadataList(positiveChanges);
@@ -104,7 +152,7 @@ public class SMARunner {
      */
     public List<SMAMetadata> getDestructionMembers() throws Exception {
         if (deleteMetadata.isEmpty()) {
-            Map<String, byte[]> negativeChanges = git.getDeletedMetadata();
+            Map<String, ObjectId> negativeChanges = git.getDeletedMetadata();
 
             deleteMetadata = buildMetadataList(negativeChanges);
         }
@@ -115,10 +163,20 @@ public class SMARunner {
         if (deleteMetadata.isEmpty()) {
             getDestructionMembers();
         }
+        List<SMAMetadata> candidates = new ArrayList<SMAMetadata>(deleteMetadata);
+        candidates.addAll(buildMetadataList(git.getOriginalMetadata()));
+
+        // Files taken from the deployed state ledger may no longer be in the repository
         rollbackMetadata = new ArrayList<SMAMetadata>();
-        rollbackMetadata.addAll(deleteMetadata);
-        rollbackMetadata.addAll(buildMetadataList(git.getOriginalMetadata()));
+        for (SMAMetadata metadata : candidates) {
+            ObjectId id = metadata.getBlob().getId();
 
+            if (null == id || git.hasObject(id)) {
+                rollbackMetadata.add(metadata);
+            } else {
+                LOG.warning("Leaving " + metadata.getPath() + metadata.getFullName() + " out of the rollback package, its content is no longer in the repository");
+            }
+        }
         return rollbackMetadata;
     }
 
@@ -130,19 +188,19 @@ public class SMARunner {
     }
 
     /**
-     * Returns a map with the file name mapped to the byte contents of the metadata
+     * Returns a map with the file name mapped to the contents of the metadata
      *
      * @return deploymentData
      * @throws Exception
      */
-    public Map<String, byte[]> getDeploymentData() throws Exception {
+    public Map<String, SMABlob> getDeploymentData() throws Exception {
         if (deployMetadata.isEmpty()) {
             getPackageMembers();
         }
         return getData(deployMetadata, currentCommit);
     }
 
-    public Map<String, byte[]> getRollbackData() throws Exception {
+    public Map<String, SMABlob> getRollbackData() throws Exception {
         if (rollbackMetadata.isEmpty()) {
             getRollbackMetadata();
         }
@@ -150,40 +208,47 @@ public class SMARunner {
     }
 
     /**
-     * Helper method to find the byte[] contents of given metadata
+     * Helper method to find the contents of given metadata
      *
      * @param metadatas
-     * @param commit
+     * @param commit Commit to read -meta.xml files from, or null to take them from the deployed state ledger
      * @return
      * @throws Exception
      */
-    private Map<String, byte[]> getData(List<SMAMetadata> metadatas, String commit) throws Exception {
-        Map<String, byte[]> data = new HashMap<String, byte[]>();
+    private Map<String, SMABlob> getData(List<SMAMetadata> metadatas, String commit) throws Exception {
+        Map<String, SMABlob> data = new HashMap<String, SMABlob>();
 
         for (SMAMetadata metadata : metadatas) {
-            data.put(metadata.toString(), metadata.getBody());
+            data.put(metadata.toString(), metadata.getBlob());
 
             if (metadata.hasMetaxml()) {
                 String metaXml = metadata.toString() + "-meta.xml";
                 String pathToXml = metadata.getPath() + metadata.getFullName() + "-meta.xml";
-                data.put(metaXml, git.getBlob(pathToXml, commit));
+                ObjectId xmlId = null == commit ? deployedState.get(pathToXml) : git.getBlobId(pathToXml, commit);
+
+                if (null != xmlId && null == commit && !git.hasObject(xmlId)) {
+                    LOG.warning("Leaving " + pathToXml + " out of the package, its content is no longer in the repository");
+                } else if (null != xmlId) {
+                    data.put(metaXml, new SMABlob(git, xmlId));
+                }
             }
         }
         return data;
     }
 
     /**
-     * Constructs a list of SMAMetadata objects from a Map of files and their byte[] contents
+     * Constructs a list of SMAMetadata objects from a Map of files and their blob ids
      *
      * @param repoItems
      * @return
      * @throws Exception
      */
-    private List<SMAMetadata> buildMetadataList(Map<String, byte[]> repoItems) throws Exception {
+    private List<SMAMetadata> buildMetadataList(Map<String, ObjectId> repoItems) throws Exception {
         List<SMAMetadata> thisMetadata = new ArrayList<SMAMetadata>();
 
         for (String repoItem : repoItems.keySet()) {
-            SMAMetadata mdObject = SMAMetadataTypes.createMetadataObject(repoItem, repoItems.get(repoItem));
+            SMABlob blob = new SMABlob(git, repoItems.get(repoItem));
+            SMAMetadata mdObject = SMAMetadataTypes.createMetadataObject(repoItem, blob);
 
             if (mdObject.isValid()) {
                 thisMetadata.add(mdObject);
@@ -203,20 +268,24 @@ public class SMARunner {
         Set<String> specifiedTestsList = new HashSet<String>();
 
         Set<String> apexClassesToDeploy = SMAMetadata.getApexClasses(deployMetadata);
-        Set<String> allApexClasses      = SMAMetadata.getApexClasses(buildMetadataList(git.getAllMetadata()));
-        Map<String, Set<String>> classMapping = getManifestClassMapping(builder);
+        Set<String> allApexClasses      = git.getApexClassNames();
+        SMATestManifestReader manifest = getManifest(builder);
+        SMATestDependencies dependencies = builder.getRunTestDependencies() ? SMATestDependencies.forSource(git) : null;
+        SMATestClassMatcher classMatcher = new SMATestClassMatcher(allApexClasses);
 
         for (String className : apexClassesToDeploy) {
             Set<String> testsForClass = new HashSet<String>();
 
-            String testName = getSpecifiedTestsByRegex(className, allApexClasses, builder);
+            String testName = getSpecifiedTestsByRegex(className, classMatcher, builder);
 
             if (null != testName) {
                 testsForClass.add(testName);
             }
-            if (null != classMapping) {
-                Set<String> manifestTests = getSpecifiedTestsByManifest(className, classMapping);
-                testsForClass.addAll(manifestTests);
+            if (null != manifest) {
+                testsForClass.addAll(manifest.getTestsForClass(className));
+            }
+            if (null != dependencies) {
+                testsForClass.addAll(dependencies.getTestsForClass(className));
             }
             if (testsForClass.size() == 0) {
                 LOG.warning("No test class for " + className + " found");
@@ -224,6 +293,18 @@ public class SMARunner {
             }
             specifiedTestsList.addAll(testsForClass);
         }
+        if (null != dependencies) {
+            for (SMAMetadata md : deployMetadata) {
+                if (md.getMetadataType().equals("ApexTrigger")) {
+                    Set<String> testsForTrigger = dependencies.getTestsForTrigger(md.getMember());
+
+                    if (testsForTrigger.isEmpty()) {
+                        LOG.warning("No test class for trigger " + md.getMember() + " found");
+                    }
+                    specifiedTestsList.addAll(testsForTrigger);
+                }
+            }
+        }
         specifiedTestsList.retainAll(allApexClasses);
 
         SortedSet<String> specifiedTestsListSorted = new TreeSet<String>();
@@ -231,37 +312,31 @@ public class SMARunner {
         return specifiedTestsListSorted.toArray(new String[specifiedTestsListSorted.size()]);
     }
 
-    private Map<String, Set<String>> getManifestClassMapping(SMABuilder builder) {
+    private SMATestManifestReader getManifest(SMABuilder builder) {
         if (!builder.getRunTestManifest().isEmpty()) {
             try {
                 String pathToManifest = this.pathToWorkspace + File.separator + builder.getRunTestManifest();
-                SMATestManifestReader manifestReader = new SMATestManifestReader(pathToManifest);
-                return manifestReader.getClassMapping();
+                return new SMATestManifestReader(pathToManifest);
             } catch (ConfigurationException e) {
                 LOG.warning("Error found while loading test manifest '" + builder.getRunTestManifest() + "': " + e.getMessage());
-            } catch (NoSuchElementException e) {
-                LOG.warning("Error found in the document structure of the test manifest: " + e.getMessage());
             }
         }
         return null;
     }
 
-    private Set<String> getSpecifiedTestsByManifest(String className, Map<String, Set<String>> classMapping) {
-        return null != classMapping && classMapping.containsKey(className) ? classMapping.get(className) : Collections.<String>emptySet();
-    }
-
-    private String getSpecifiedTestsByRegex(String className, Set<String> allApexClasses, SMABuilder builder) {
+    private String getSpecifiedTestsByRegex(String className, SMATestClassMatcher classMatcher, SMABuilder builder) {
         String testRegex = builder.getRunTestRegex();
 
         if (null == testRegex || testRegex.isEmpty()) { return null; }
 
-        if (className.matches(testRegex)) {
+        if (SMATestClassMatcher.compile(testRegex).matcher(className).matches()) {
             return className;
         }
         String[] regexs = new String[] { className + testRegex, testRegex + className };
+        boolean indexed = SMATestClassMatcher.keepsLiteral(className, testRegex);
 
         for (String regex : regexs) {
-            String testClass = SMAUtility.searchForTestClass(allApexClasses, regex);
+            String testClass = indexed ? classMatcher.findFirst(regex, className) : classMatcher.findFirst(regex);
 
             if (null != testClass) {
                 return testClass;
@@ -282,4 +357,22 @@ public class SMARunner {
     public String getCurrentCommit() {
         return this.currentCommit;
     }
+
+    /**
+     * Returns the blob cache statistics of the git session used by this job.
+     *
+     * @return
+     */
+    public String getCacheStatistics() {
+        return git.getCacheStatistics();
+    }
+
+    /**
+     * Closes the git session used by this job. Blobs handed out by this runner can no longer be read afterwards.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        git.close();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,123 @@
+package org.jenkinsci.plugins.sma;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import java.io.IOException;
+
+/**
+ * Selects the source files of a repository. By default these are the files below any directory named src, at any
+ * depth, so nested layouts such as project/src are found. A configured source root is a directory path from the
+ * root of the repository instead; only that directory is walked.
+ *
+ */
+public class SMASourceFilter extends TreeFilter {
+    public static final String DEFAULT_ROOT = "src";
+
+    private static final byte[] DEFAULT_ROOT_RAW = Constants.encode(DEFAULT_ROOT);
+
+    private final String root;
+    private final PathFilter prefix;
+
+    /**
+     * Creates a filter for the given source root
+     *
+     * @param sourceRoot Directory path from the root of the repository, or null or empty for any src directory
+     */
+    public SMASourceFilter(String sourceRoot) {
+        String path = null == sourceRoot ? "" : sourceRoot.trim().replace('\\', '/');
+
+        while (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        this.root = path.isEmpty() ? null : path;
+        this.prefix = null == root ? null : PathFilter.create(root);
+    }
+
+    /**
+     * Returns the configured source root, or null if any src directory is a source root
+     *
+     * @return
+     */
+    public String getRoot() { return root; }
+
+    /**
+     * Returns whether the file at the given path is a source file
+     *
+     * @param path
+     * @return
+     */
+    public boolean isSourcePath(String path) {
+        if (null != root) {
+            return path.startsWith(root + "/");
+        }
+        byte[] raw = Constants.encode(path);
+        return isBelowDefaultRoot(raw, raw.length);
+    }
+
+    /**
+     * Returns whether a directory is a source root, given its path from the root of the repository
+     *
+     * @param path
+     * @return
+     */
+    public boolean isSourceRoot(String path) {
+        if (null != root) {
+            return path.equals(root);
+        }
+        return path.equals(DEFAULT_ROOT) || path.endsWith("/" + DEFAULT_ROOT);
+    }
+
+    @Override
+    public boolean include(TreeWalk walker) throws IOException {
+        if (null != prefix) {
+            return prefix.include(walker);
+        }
+        // Any directory may hold a nested source root
+        return walker.isSubtree() || isBelowDefaultRoot(walker.getRawPath(), walker.getPathLength());
+    }
+
+    @Override
+    public boolean shouldBeRecursive() {
+        return true;
+    }
+
+    @Override
+    public TreeFilter clone() {
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return null == root ? "SOURCE(**/" + DEFAULT_ROOT + ")" : "SOURCE(" + root + ")";
+    }
+
+    /**
+     * Returns whether the path has a src segment followed by at least one more segment
+     */
+    private static boolean isBelowDefaultRoot(byte[] path, int length) {
+        int last = length - DEFAULT_ROOT_RAW.length - 1;
+
+        for (int start = 0; start < last; start++) {
+            if ((start == 0 || path[start - 1] == '/') && path[start + DEFAULT_ROOT_RAW.length] == '/'
+                    && regionMatches(path, start)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean regionMatches(byte[] path, int start) {
+        for (int i = 0; i < DEFAULT_ROOT_RAW.length; i++) {
+            if (path[start + i] != DEFAULT_ROOT_RAW[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
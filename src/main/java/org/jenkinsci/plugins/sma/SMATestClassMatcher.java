@@ -0,0 +1,209 @@
+package org.jenkinsci.plugins.sma;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Finds test classes by regular expression over a fixed set of class names. Patterns are compiled once per
+ * process, and a suffix array over the names narrows a search down to the names containing a given literal before
+ * any pattern is run, so the className + regex and regex + className searches only look at a few candidates.
+ * Results are the same as a scan over the names in their original iteration order.
+ *
+ */
+public class SMATestClassMatcher {
+    private static final int MAX_PATTERNS = 10000;
+    private static final char SEPARATOR = '\u0000';
+    private static final Pattern WORD = Pattern.compile("\\w+");
+
+    private static final Map<String, Pattern> PATTERNS = new LinkedHashMap<String, Pattern>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+            return size() > MAX_PATTERNS;
+        }
+    };
+
+    private final String[] names;
+    private final char[] text;
+    private final int[] owners;
+    private final Integer[] suffixes;
+
+    /**
+     * Indexes the given class names
+     *
+     * @param classNames
+     */
+    public SMATestClassMatcher(Collection<String> classNames) {
+        this.names = classNames.toArray(new String[classNames.size()]);
+
+        StringBuilder all = new StringBuilder();
+        for (String name : names) {
+            all.append(name).append(SEPARATOR);
+        }
+        this.text = all.toString().toCharArray();
+        this.owners = new int[text.length];
+
+        List<Integer> starts = new ArrayList<Integer>(text.length);
+        for (int i = 0, owner = 0; i < text.length; i++) {
+            owners[i] = owner;
+            if (text[i] == SEPARATOR) {
+                owner++;
+            } else {
+                starts.add(i);
+            }
+        }
+        this.suffixes = starts.toArray(new Integer[starts.size()]);
+        Arrays.sort(suffixes, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return compareSuffix(a, b);
+            }
+        });
+    }
+
+    /**
+     * Returns the compiled form of a regular expression, compiling it only the first time it is seen
+     *
+     * @param regex
+     * @return
+     */
+    public static Pattern compile(String regex) {
+        Pattern pattern;
+
+        synchronized (PATTERNS) {
+            pattern = PATTERNS.get(regex);
+        }
+        if (null == pattern) {
+            pattern = Pattern.compile(regex);
+
+            synchronized (PATTERNS) {
+                PATTERNS.put(regex, pattern);
+            }
+        }
+        return pattern;
+    }
+
+    /**
+     * Returns whether a class name can be glued to either side of a test regex without changing how the class
+     * name itself is matched, i.e. every match of the combined pattern still contains the class name literally.
+     * This rules out class names with regex syntax, and test regexes with a top level alternation, a leading
+     * quantifier, a trailing escape or inline flags.
+     *
+     * @param className
+     * @param testRegex
+     * @return
+     */
+    public static boolean keepsLiteral(String className, String testRegex) {
+        if (!WORD.matcher(className).matches()) {
+            return false;
+        }
+        if (testRegex.isEmpty() || testRegex.contains("(?") || "*+?{".indexOf(testRegex.charAt(0)) >= 0) {
+            return false;
+        }
+        int depth = 0;
+        boolean inClass = false;
+
+        for (int i = 0; i < testRegex.length(); i++) {
+            char c = testRegex.charAt(i);
+
+            if (c == '\\') {
+                if (++i == testRegex.length()) {
+                    return false;
+                }
+            } else if (inClass) {
+                inClass = c != ']';
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '|' && depth == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the first class name, in the original order, in which the regex finds a match.
+     *
+     * @param regex
+     * @return
+     */
+    public String findFirst(String regex) {
+        Pattern pattern = compile(regex);
+
+        for (String name : names) {
+            if (pattern.matcher(name).find()) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the first class name, in the original order, in which the regex finds a match. Every match of the
+     * regex must contain the given literal; only the names that contain it are tried.
+     *
+     * @param regex
+     * @param literal
+     * @return
+     */
+    public String findFirst(String regex, String literal) {
+        if (literal.isEmpty()) {
+            return findFirst(regex);
+        }
+        Pattern pattern = compile(regex);
+        BitSet candidates = containing(literal);
+
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            if (pattern.matcher(names[i]).find()) {
+                return names[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the positions of the names that contain the literal.
+     *
+     * @param literal
+     * @return
+     */
+    private BitSet containing(String literal) {
+        BitSet found = new BitSet(names.length);
+        int low = 0, high = suffixes.length;
+
+        // Lower bound of the suffixes starting with the literal
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (comparePrefix(suffixes[mid], literal) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        for (int i = low; i < suffixes.length && comparePrefix(suffixes[i], literal) == 0; i++) {
+            found.set(owners[suffixes[i]]);
+        }
+        return found;
+    }
+
+    private int compareSuffix(int a, int b) {
+        while (text[a] != SEPARATOR && text[a] == text[b]) {
+            a++;
+            b++;
+        }
+        return text[a] - text[b];
+    }
+
+    private int comparePrefix(int start, String literal) {
+        for (int i = 0; i < literal.length(); i++, start++) {
+            char c = text[start];
+
+            if (c != literal.charAt(i)) {
+                return c == SEPARATOR ? -1 : c - literal.charAt(i);
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,238 @@
+package org.jenkinsci.plugins.sma;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.util.*;
+
+/**
+ * Reverse reference graph over the Apex classes and triggers of a source tree, used to find the test classes that
+ * exercise a change. A class is reached by every unit naming it. A trigger is reached through its sObject: any
+ * unit naming that sObject may fire it.
+ *
+ */
+public class SMATestDependencies {
+    private static final String TRIGGER = "trigger:";
+    private static final String SOBJECT = "sobject:";
+    private static final int MAX_GRAPHS = 4;
+
+    private static final Map<ObjectId, SMATestDependencies> GRAPHS =
+            new LinkedHashMap<ObjectId, SMATestDependencies>(8, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ObjectId, SMATestDependencies> eldest) {
+                    return size() > MAX_GRAPHS;
+                }
+            };
+
+    private final Map<String, SMAApexScanner.Result> classScans;
+    private final Map<String, SMAApexScanner.Result> triggerScans;
+    private final Map<String, String> classNames = new HashMap<String, String>();
+    private final Set<String> tests = new HashSet<String>();
+    private final Map<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+
+    /**
+     * Builds the graph from scanned classes and triggers
+     *
+     * @param classes Scans of the Apex classes by class name
+     * @param triggers Scans of the Apex triggers by trigger name
+     */
+    public SMATestDependencies(Map<String, SMAApexScanner.Result> classes,
+                               Map<String, SMAApexScanner.Result> triggers)
+    {
+        this.classScans = new HashMap<String, SMAApexScanner.Result>(classes);
+        this.triggerScans = new HashMap<String, SMAApexScanner.Result>(triggers);
+        Set<String> triggerObjects = new HashSet<String>();
+
+        for (Map.Entry<String, SMAApexScanner.Result> trigger : triggers.entrySet()) {
+            String triggerObject = trigger.getValue().getTriggerObject();
+
+            if (null != triggerObject) {
+                triggerObjects.add(triggerObject);
+                addEdge(TRIGGER + trigger.getKey().toLowerCase(Locale.ROOT), SOBJECT + triggerObject);
+            }
+        }
+        for (Map.Entry<String, SMAApexScanner.Result> apexClass : classes.entrySet()) {
+            String key = apexClass.getKey().toLowerCase(Locale.ROOT);
+
+            classNames.put(key, apexClass.getKey());
+            if (apexClass.getValue().isTest()) {
+                tests.add(key);
+            }
+        }
+        for (Map.Entry<String, SMAApexScanner.Result> apexClass : classes.entrySet()) {
+            addReferences(apexClass.getKey().toLowerCase(Locale.ROOT), apexClass.getValue(), triggerObjects);
+        }
+        for (Map.Entry<String, SMAApexScanner.Result> trigger : triggers.entrySet()) {
+            addReferences(TRIGGER + trigger.getKey().toLowerCase(Locale.ROOT), trigger.getValue(), triggerObjects);
+        }
+    }
+
+    /**
+     * Returns the graph for the source tree of the current commit of a git session. Graphs are cached by source
+     * tree id, and class bodies are only scanned the first time their blob is seen. If the graph of the previous
+     * commit is cached, only the changes of the session are applied to it instead of walking the whole tree.
+     *
+     * @param git
+     * @return
+     * @throws Exception
+     */
+    public static SMATestDependencies forSource(SMAGit git) throws Exception {
+        ObjectId sourceTree = git.getSourceTreeId();
+        SMATestDependencies graph;
+
+        synchronized (GRAPHS) {
+            graph = null == sourceTree ? null : GRAPHS.get(sourceTree);
+        }
+        if (null != graph) {
+            return graph;
+        }
+        ObjectId previousTree = null == sourceTree || null == git.getPreviousCommit()
+                ? null : git.getSourceTreeId(git.getPreviousCommit());
+        SMATestDependencies previous;
+
+        synchronized (GRAPHS) {
+            previous = null == previousTree ? null : GRAPHS.get(previousTree);
+        }
+        if (null != previous) {
+            graph = previous.update(git);
+        } else {
+            Map<String, SMAApexScanner.Result> classes = new HashMap<String, SMAApexScanner.Result>();
+            Map<String, SMAApexScanner.Result> triggers = new HashMap<String, SMAApexScanner.Result>();
+
+            putScans(git, git.getAllMetadata(), classes, triggers);
+            graph = new SMATestDependencies(classes, triggers);
+        }
+
+        if (null != sourceTree) {
+            synchronized (GRAPHS) {
+                GRAPHS.put(sourceTree.copy(), graph);
+            }
+        }
+        return graph;
+    }
+
+    /**
+     * Returns a graph with the additions, updates and deletions of a git session applied to this one. Only the
+     * changed classes and triggers are scanned; the references are then rebuilt from the scans in memory.
+     *
+     * @param git
+     * @return
+     * @throws Exception
+     */
+    SMATestDependencies update(SMAGit git) throws Exception {
+        Map<String, SMAApexScanner.Result> classes = new HashMap<String, SMAApexScanner.Result>(classScans);
+        Map<String, SMAApexScanner.Result> triggers = new HashMap<String, SMAApexScanner.Result>(triggerScans);
+
+        // Deletions first, so a component moved to another path is put back by its addition
+        for (String path : git.getDeletedMetadata().keySet()) {
+            if (path.endsWith("-meta.xml")) {
+                continue;
+            }
+            SMAMetadata md = SMAMetadataTypes.createMetadataObject(path, (SMABlob) null);
+
+            if (md.getMetadataType().equals("ApexClass")) {
+                classes.remove(md.getMember());
+            } else if (md.getMetadataType().equals("ApexTrigger")) {
+                triggers.remove(md.getMember());
+            }
+        }
+        putScans(git, git.getNewMetadata(), classes, triggers);
+        putScans(git, git.getUpdatedMetadata(), classes, triggers);
+
+        return new SMATestDependencies(classes, triggers);
+    }
+
+    /**
+     * Scans the Apex classes and triggers among the given source files
+     *
+     * @param git
+     * @param items Paths and blob ids of source files
+     * @param classes Scans of the Apex classes by class name, added to
+     * @param triggers Scans of the Apex triggers by trigger name, added to
+     * @throws Exception
+     */
+    private static void putScans(SMAGit git,
+                                 Map<String, ObjectId> items,
+                                 Map<String, SMAApexScanner.Result> classes,
+                                 Map<String, SMAApexScanner.Result> triggers) throws Exception
+    {
+        for (Map.Entry<String, ObjectId> item : items.entrySet()) {
+            if (item.getKey().endsWith("-meta.xml")) {
+                continue;
+            }
+            SMAMetadata md = SMAMetadataTypes.createMetadataObject(item.getKey(), (SMABlob) null);
+
+            if (md.getMetadataType().equals("ApexClass")) {
+                classes.put(md.getMember(), SMAApexScanner.scan(git, item.getValue()));
+            } else if (md.getMetadataType().equals("ApexTrigger")) {
+                triggers.put(md.getMember(), SMAApexScanner.scan(git, item.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Returns the test classes that transitively reference the given class, including the class itself if it
+     * is a test.
+     *
+     * @param className
+     * @return
+     */
+    public Set<String> getTestsForClass(String className) {
+        return collectTests(className.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Returns the test classes that may fire the given trigger.
+     *
+     * @param triggerName
+     * @return
+     */
+    public Set<String> getTestsForTrigger(String triggerName) {
+        return collectTests(TRIGGER + triggerName.toLowerCase(Locale.ROOT));
+    }
+
+    private void addReferences(String unit, SMAApexScanner.Result scan, Set<String> triggerObjects) {
+        for (String identifier : scan.getIdentifiers()) {
+            if (classNames.containsKey(identifier) && !identifier.equals(unit)) {
+                addEdge(identifier, unit);
+            }
+            if (triggerObjects.contains(identifier)) {
+                addEdge(SOBJECT + identifier, unit);
+            }
+        }
+    }
+
+    private void addEdge(String from, String to) {
+        Set<String> targets = dependents.get(from);
+
+        if (null == targets) {
+            targets = new HashSet<String>();
+            dependents.put(from, targets);
+        }
+        targets.add(to);
+    }
+
+    private Set<String> collectTests(String start) {
+        Set<String> found = new TreeSet<String>();
+        Set<String> visited = new HashSet<String>();
+        Deque<String> queue = new ArrayDeque<String>();
+
+        visited.add(start);
+        queue.add(start);
+        while (!queue.isEmpty()) {
+            String node = queue.poll();
+
+            if (tests.contains(node)) {
+                found.add(classNames.get(node));
+            }
+            Set<String> next = dependents.get(node);
+            if (null != next) {
+                for (String dependent : next) {
+                    if (visited.add(dependent)) {
+                        queue.add(dependent);
+                    }
+                }
+            }
+        }
+        return found;
+    }
+}
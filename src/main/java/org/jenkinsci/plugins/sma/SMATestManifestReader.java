@@ -2,43 +2,357 @@ package org.jenkinsci.plugins.sma;
 
 
 import org.apache.commons.configuration.ConfigurationException;
-import org.apache.commons.configuration.HierarchicalConfiguration;
-import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.io.input.CloseShieldInputStream;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
 /**
+ * Reads the class to test class mappings of a test manifest. A class entry is either a class name or a glob such
+ * as Account*Service or ns__*, and globs are compiled into a single SMAClassPatternMatcher. The manifest is
+ * streamed with StAX and the result is cached by location; a manifest whose modification time and size, or
+ * failing that whose content hash, is unchanged is not parsed again.
+ *
  * Created by ronvelzeboer on 14/01/17.
  */
 public class SMATestManifestReader {
-    private final XMLConfiguration manifest;
+    private static final String MAPPINGS = "mappings";
+    private static final String CLASS = "class";
+    private static final String TESTS = "tests";
+    private static final char LIST_DELIMITER = ',';
+    private static final int MAX_MANIFESTS = 16;
 
+    private static final Map<String, CachedManifest> MANIFESTS =
+            new LinkedHashMap<String, CachedManifest>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedManifest> eldest) {
+                    return size() > MAX_MANIFESTS;
+                }
+            };
+
+    private final Map<String, Set<String>> mapping;
+    private final SMAClassPatternMatcher patterns;
+
+    /**
+     * Loads the manifest at the given path. Like XMLConfiguration, the path is looked up as a file first and then
+     * on the classpath.
+     *
+     * @param pathToManifest
+     * @throws ConfigurationException
+     */
     public SMATestManifestReader(String pathToManifest) throws ConfigurationException {
-        this.manifest = new XMLConfiguration(pathToManifest);
+        CachedManifest manifest;
+
+        try {
+            File file = new File(pathToManifest);
+
+            if (file.isFile()) {
+                manifest = load(file);
+            } else {
+                URL resource = locateResource(pathToManifest);
+
+                if (null == resource) {
+                    throw new ConfigurationException("Cannot locate configuration source " + pathToManifest);
+                }
+                manifest = load(resource);
+            }
+        } catch (IOException e) {
+            throw new ConfigurationException("Unable to load the configuration from " + pathToManifest, e);
+        }
+        this.mapping = manifest.mapping;
+        this.patterns = manifest.patterns;
     }
 
+    /**
+     * Returns the test classes mapped to each class name, leaving out pattern entries. The returned map is shared
+     * and must not be modified.
+     *
+     * @return
+     */
     public Map<String, Set<String>> getClassMapping() {
+        return mapping;
+    }
+
+    /**
+     * Returns the test classes mapped to a class, either by its name or by any pattern matching it
+     *
+     * @param className
+     * @return
+     */
+    public Set<String> getTestsForClass(String className) {
+        Set<String> exact = mapping.containsKey(className) ? mapping.get(className) : Collections.<String>emptySet();
+        Set<String> matched = patterns.getTests(className);
+
+        if (matched.isEmpty()) {
+            return exact;
+        }
+        Set<String> tests = new HashSet<String>(exact);
+        tests.addAll(matched);
+        return tests;
+    }
+
+    /**
+     * Empties the cache of parsed manifests.
+     */
+    public static void clear() {
+        synchronized (MANIFESTS) {
+            MANIFESTS.clear();
+        }
+    }
+
+    private static CachedManifest load(File file) throws IOException, ConfigurationException {
+        String key = file.getCanonicalPath();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        CachedManifest cached;
+
+        synchronized (MANIFESTS) {
+            cached = MANIFESTS.get(key);
+        }
+        if (null != cached && cached.lastModified == lastModified && cached.length == length) {
+            return cached;
+        }
+        if (null != cached && Arrays.equals(cached.hash, digest(new FileInputStream(file)))) {
+            return cache(key, new CachedManifest(lastModified, length, cached.hash, cached.mapping, cached.patterns));
+        }
+        return cache(key, read(new FileInputStream(file), lastModified, length));
+    }
+
+    private static CachedManifest load(URL resource) throws IOException, ConfigurationException {
+        String key = resource.toExternalForm();
+        CachedManifest cached;
+
+        synchronized (MANIFESTS) {
+            cached = MANIFESTS.get(key);
+        }
+        if (null != cached && Arrays.equals(cached.hash, digest(resource.openStream()))) {
+            return cached;
+        }
+        return cache(key, read(resource.openStream(), -1, -1));
+    }
+
+    private static CachedManifest cache(String key, CachedManifest manifest) {
+        synchronized (MANIFESTS) {
+            MANIFESTS.put(key, manifest);
+        }
+        return manifest;
+    }
+
+    /**
+     * Parses a manifest straight from the stream, hashing it on the way, and closes the stream.
+     */
+    private static CachedManifest read(InputStream in,
+                                       long lastModified,
+                                       long length) throws IOException, ConfigurationException
+    {
+        DigestInputStream digestIn = new DigestInputStream(in, newDigest());
+        Map<String, Set<String>> mapping = new HashMap<String, Set<String>>();
+        Map<String, Set<String>> patternMapping = new HashMap<String, Set<String>>();
+
+        try {
+            for (Map.Entry<String, Set<String>> entry : parse(new CloseShieldInputStream(digestIn)).entrySet()) {
+                if (SMAClassPatternMatcher.isPattern(entry.getKey())) {
+                    patternMapping.put(entry.getKey(), entry.getValue());
+                } else {
+                    mapping.put(entry.getKey(), entry.getValue());
+                }
+            }
+            // The parser may close its input or stop reading before the end of the file
+            drain(digestIn);
+        } finally {
+            digestIn.close();
+        }
+        return new CachedManifest(lastModified, length, digestIn.getMessageDigest().digest(),
+                Collections.unmodifiableMap(mapping), new SMAClassPatternMatcher(patternMapping));
+    }
+
+    /**
+     * Streams the class mappings out of a manifest. This follows the XMLConfiguration semantics the reader used
+     * to rely on: mappings are the direct children of the root element, a class is the first class value, and
+     * every tests value is split on commas, trimmed, and dropped when empty.
+     *
+     * @param in
+     * @return
+     * @throws ConfigurationException
+     */
+    static Map<String, Set<String>> parse(InputStream in) throws ConfigurationException {
         Map<String, Set<String>> result = new HashMap<String, Set<String>>();
-        List<HierarchicalConfiguration> mappingConfig = this.manifest.configurationsAt("mappings");
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        XMLStreamReader reader = null;
 
-        if (null == mappingConfig) { return result; }
+        try {
+            reader = factory.createXMLStreamReader(in);
+            String className = null;
+            List<String> tests = new ArrayList<String>();
+            int depth = 0;
 
-        for (HierarchicalConfiguration config : mappingConfig) {
-            String className = config.getString("class");
+            while (reader.hasNext()) {
+                int event = reader.next();
 
-            if (null == className || className.isEmpty()) { continue; }
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    String name = reader.getLocalName();
 
-            if (!result.containsKey(className)) {
-                result.put(className, new HashSet<String>());
+                    if (depth == 2 && MAPPINGS.equals(name)) {
+                        className = null;
+                        tests.clear();
+                    } else if (depth == 3 && CLASS.equals(name)) {
+                        List<String> values = split(readText(reader));
+                        if (null == className && !values.isEmpty()) {
+                            className = values.get(0);
+                        }
+                        depth--;
+                    } else if (depth == 3 && TESTS.equals(name)) {
+                        tests.addAll(split(readText(reader)));
+                        depth--;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (depth == 2 && MAPPINGS.equals(reader.getLocalName())) {
+                        addMapping(result, className, tests);
+                    }
+                    depth--;
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new ConfigurationException("Unable to load the configuration: " + e.getMessage(), e);
+        } finally {
+            if (null != reader) {
+                try { reader.close(); } catch (XMLStreamException e) { /* Nothing left to read */ }
             }
-            String[] testClasses = config.getStringArray("tests");
+        }
+        for (Map.Entry<String, Set<String>> entry : result.entrySet()) {
+            entry.setValue(Collections.unmodifiableSet(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    private static void addMapping(Map<String, Set<String>> result, String className, List<String> tests) {
+        if (null == className || className.isEmpty()) { return; }
+
+        if (!result.containsKey(className)) {
+            result.put(className, new HashSet<String>());
+        }
+        for (String testClass : tests) {
+            if (testClass.isEmpty()) { continue; }
+
+            result.get(className).add(testClass);
+        }
+    }
 
-            for (String testClass : testClasses) {
-                if (testClass.isEmpty()) { continue; }
+    /**
+     * Returns the text directly inside the current element and leaves the reader on its end tag.
+     */
+    private static String readText(XMLStreamReader reader) throws XMLStreamException {
+        StringBuilder text = new StringBuilder();
+        int depth = 1;
 
-                result.get(className).add(testClass);
+        while (depth > 0) {
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (depth == 1 && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA)) {
+                text.append(reader.getText());
             }
         }
-        return result;
+        return text.toString().trim();
+    }
+
+    private static List<String> split(String value) {
+        List<String> values = new ArrayList<String>();
+        StringBuilder current = new StringBuilder();
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if (c == '\\' && i + 1 < value.length() && value.charAt(i + 1) == LIST_DELIMITER) {
+                current.append(LIST_DELIMITER);
+                i++;
+            } else if (c == LIST_DELIMITER) {
+                values.add(current.toString().trim());
+                current.setLength(0);
+            } else {
+                current.append(c);
+            }
+        }
+        values.add(current.toString().trim());
+        return values;
+    }
+
+    private static URL locateResource(String path) {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        URL resource = null == loader ? null : loader.getResource(path);
+
+        if (null == resource) {
+            resource = SMATestManifestReader.class.getClassLoader().getResource(path);
+        }
+        return resource;
+    }
+
+    /**
+     * Returns the content hash of a stream and closes it.
+     */
+    private static byte[] digest(InputStream in) throws IOException {
+        DigestInputStream digestIn = new DigestInputStream(in, newDigest());
+
+        try {
+            drain(digestIn);
+        } finally {
+            digestIn.close();
+        }
+        return digestIn.getMessageDigest().digest();
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+
+        while (in.read(buffer) != -1) {
+            // Only the digest is wanted
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class CachedManifest {
+        private final long lastModified;
+        private final long length;
+        private final byte[] hash;
+        private final Map<String, Set<String>> mapping;
+        private final SMAClassPatternMatcher patterns;
+
+        private CachedManifest(long lastModified,
+                               long length,
+                               byte[] hash,
+                               Map<String, Set<String>> mapping,
+                               SMAClassPatternMatcher patterns)
+        {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.hash = hash;
+            this.mapping = mapping;
+            this.patterns = patterns;
+        }
     }
 }
@@ -2,15 +2,12 @@ package org.jenkinsci.plugins.sma;
 
 import hudson.model.BuildListener;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.InputStream;
 import java.util.*;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 /**
  * Utility class for performing a variety of tasks in SMA.
@@ -20,9 +17,12 @@ import java.util.zip.ZipOutputStream;
 public class SMAUtility {
     private static final Logger LOG = Logger.getLogger(SMAUtility.class.getName());
 
+    private static final int DEFAULT_COMPRESSION_LEVEL = 6;
+    private static final int COMPRESSION_THREADS = Runtime.getRuntime().availableProcessors();
 
     /**
-     * Creates a zipped byte array of the deployment or rollback package
+     * Creates the zipped deployment or rollback package in a temporary file. Component bodies are streamed into
+     * the archive one at a time.
      *
      * @param deployData
      * @param packageManifest
@@ -30,54 +30,131 @@ public class SMAUtility {
      * @return
      * @throws Exception
      */
-    public static ByteArrayOutputStream zipPackage(Map<String, byte[]> deployData,
-                                                   SMAPackage packageManifest,
-                                                   SMAPackage destructiveChange) throws Exception
+    public static SMAZip zipPackage(Map<String, SMABlob> deployData,
+                                    SMAPackage packageManifest,
+                                    SMAPackage destructiveChange) throws Exception
     {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ZipOutputStream zos = null;
+        return zipPackage(deployData, packageManifest, destructiveChange, 1);
+    }
+
+    /**
+     * Creates the zipped deployment or rollback package in a temporary file at the default compression level.
+     *
+     * @param deployData
+     * @param packageManifest
+     * @param destructiveChange
+     * @param loaderThreads
+     * @return
+     * @throws Exception
+     */
+    public static SMAZip zipPackage(Map<String, SMABlob> deployData,
+                                    SMAPackage packageManifest,
+                                    SMAPackage destructiveChange,
+                                    int loaderThreads) throws Exception
+    {
+        return zipPackage(deployData, packageManifest, destructiveChange, loaderThreads, DEFAULT_COMPRESSION_LEVEL);
+    }
+
+    /**
+     * Creates the zipped deployment or rollback package in a temporary file. With more than one loader thread the
+     * component bodies are inflated in parallel. Bodies are deflated on all cores, except those that already are
+     * compressed. Entries are written sorted by path with a fixed timestamp, so the same contents always give the
+     * same bytes. Only the bodies in flight are held in memory; the caller closes the returned package to delete it.
+     *
+     * @param deployData
+     * @param packageManifest
+     * @param destructiveChange
+     * @param loaderThreads
+     * @param compressionLevel Deflate level from 0 to 9
+     * @return
+     * @throws Exception
+     */
+    public static SMAZip zipPackage(Map<String, SMABlob> deployData,
+                                    SMAPackage packageManifest,
+                                    SMAPackage destructiveChange,
+                                    int loaderThreads,
+                                    int compressionLevel) throws Exception
+    {
+        SMAZip zip = SMAZip.createTemp();
+        long start = System.currentTimeMillis();
+        boolean written = false;
+        FileOutputStream out = null;
+        SMAZipWriter writer = null;
+        SMABlobLoader loader = null;
         try {
-            zos = new ZipOutputStream(baos);
-
-            ZipEntry manifestFile = new ZipEntry(packageManifest.getName());
-            zos.putNextEntry(manifestFile);
-            zos.write(packageManifest.getPackage().getBytes());
-            zos.closeEntry();
-
-            ZipEntry destructiveChanges = new ZipEntry(destructiveChange.getName());
-            zos.putNextEntry(destructiveChanges);
-            zos.write(destructiveChange.getPackage().getBytes());
-            zos.closeEntry();
-
-            for (String metadata : deployData.keySet()) {
-                ZipEntry metadataEntry = new ZipEntry(metadata);
-                zos.putNextEntry(metadataEntry);
-                zos.write(deployData.get(metadata));
-                zos.closeEntry();
+            out = new FileOutputStream(zip.getFile());
+            writer = new SMAZipWriter(out.getChannel(), compressionLevel, COMPRESSION_THREADS);
+
+            writer.add(packageManifest.getName(), packageManifest.getPackage().getBytes());
+            writer.add(destructiveChange.getName(), destructiveChange.getPackage().getBytes());
+
+            List<String> names = new ArrayList<String>(new TreeSet<String>(deployData.keySet()));
+
+            if (loaderThreads > 1) {
+                List<SMABlob> blobs = new ArrayList<SMABlob>(names.size());
+
+                for (String metadata : names) {
+                    blobs.add(deployData.get(metadata));
+                }
+                loader = new SMABlobLoader(loaderThreads);
+                SMABlobLoader.Batch bodies = loader.load(blobs);
+
+                for (int i = 0; i < names.size(); i++) {
+                    byte[] body = bodies.next();
+
+                    if (null != body) {
+                        writer.add(names.get(i), body);
+                    } else {
+                        // Too large to load ahead, so it is streamed here
+                        addBody(writer, names.get(i), blobs.get(i));
+                    }
+                }
+            } else {
+                for (String metadata : names) {
+                    addBody(writer, metadata, deployData.get(metadata));
+                }
             }
+            writer.finish();
+            zip.setStatistics(writer.getStatistics() + " in " + (System.currentTimeMillis() - start) + " ms");
+            written = true;
         } finally {
-            if (null != zos) { zos.close(); }
+            if (null != loader) { loader.close(); }
+            if (null != writer) { writer.close(); }
+            if (null != out) { out.close(); }
+            if (!written) { zip.close(); }
         }
-        return baos;
+        return zip;
     }
 
     /**
-     * Helper to write the zip to a file location
+     * Streams the body of a component into the zip
      *
-     * @param zipBytes
-     * @param location
+     * @param writer
+     * @param name
+     * @param blob
      * @throws Exception
      */
-    public static void writeZip(ByteArrayOutputStream zipBytes, String location) throws Exception {
-        FileOutputStream fos = null;
+    private static void addBody(SMAZipWriter writer, String name, SMABlob blob) throws Exception
+    {
+        InputStream body = blob.openStream();
         try {
-            fos = new FileOutputStream(location);
-            fos.write(zipBytes.toByteArray());
+            writer.add(name, body);
         } finally {
-            if (null != fos) { fos.close(); }
+            body.close();
         }
     }
 
+    /**
+     * Helper to write the zip to a file location
+     *
+     * @param zip
+     * @param location
+     * @throws Exception
+     */
+    public static void writeZip(SMAZip zip, String location) throws Exception {
+        zip.writeTo(new File(location));
+    }
+
     /**
      * Helper to find an existing package.xml file in the provided repository
      *
@@ -142,11 +219,10 @@ public class SMAUtility {
      */
     public static String searchForTestClass(Set<String> allMetadata, String testClassRegex) {
         String match = null;
-        Matcher matcher;
+        Pattern pattern = SMATestClassMatcher.compile(testClassRegex);
 
         for (String s : allMetadata) {
-            matcher = Pattern.compile(testClassRegex).matcher(s);
-            if (matcher.find()) {
+            if (pattern.matcher(s).find()) {
                 match = s;
                 break;
             }
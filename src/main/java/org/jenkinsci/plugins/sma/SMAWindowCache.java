@@ -0,0 +1,104 @@
+package org.jenkinsci.plugins.sma;
+
+import org.eclipse.jgit.storage.file.WindowCacheConfig;
+import org.eclipse.jgit.storage.file.WindowCacheStatAccessor;
+
+import java.util.logging.Logger;
+
+/**
+ * Applies the pack storage settings to JGit's window cache. The window cache is shared by every repository in the
+ * JVM and is emptied whenever it is reconfigured, so new settings are only installed when they change.
+ *
+ */
+public final class SMAWindowCache {
+    private static final Logger LOG = Logger.getLogger(SMAWindowCache.class.getName());
+    private static final int MIN_WINDOW_KB = 4;
+
+    private static String installed;
+
+    private SMAWindowCache() {}
+
+    /**
+     * Installs the given window cache settings if they differ from the ones in use
+     *
+     * @param mmap Whether pack windows are memory mapped instead of read into the heap
+     * @param windowSizeKb Size of a pack window in KiB, rounded down to a power of two
+     * @param openFiles Maximum number of pack files held open
+     * @param deltaBaseCacheMb Size of the delta base cache in MiB
+     * @param packedGitLimitMb Maximum number of bytes of pack windows held at once, in MiB
+     * @return Whether the settings were installed
+     */
+    public static synchronized boolean configure(boolean mmap,
+                                                 int windowSizeKb,
+                                                 int openFiles,
+                                                 int deltaBaseCacheMb,
+                                                 int packedGitLimitMb)
+    {
+        int windowSize = Integer.highestOneBit(Math.max(MIN_WINDOW_KB, windowSizeKb)) * WindowCacheConfig.KB;
+        long packedGitLimit = Math.max((long) windowSize, (long) Math.max(1, packedGitLimitMb) * WindowCacheConfig.MB);
+
+        WindowCacheConfig config = new WindowCacheConfig();
+        config.setPackedGitMMAP(mmap);
+        config.setPackedGitWindowSize(windowSize);
+        config.setPackedGitOpenFiles(Math.max(1, openFiles));
+        config.setDeltaBaseCacheLimit(Math.max(1, deltaBaseCacheMb) * WindowCacheConfig.MB);
+        config.setPackedGitLimit(packedGitLimit);
+
+        String settings = describe(config);
+        if (settings.equals(installed)) {
+            return false;
+        }
+        try {
+            config.install();
+            installed = settings;
+            LOG.info("Installed pack window cache settings: " + settings);
+            return true;
+        } catch (IllegalArgumentException e) {
+            LOG.warning("Could not install pack window cache settings " + settings + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Puts back JGit's default window cache settings, if settings of this class are installed. Does nothing
+     * otherwise, so builds without tuning do not empty the cache.
+     *
+     * @return Whether the defaults were installed
+     */
+    public static synchronized boolean reset() {
+        if (null == installed) {
+            return false;
+        }
+        new WindowCacheConfig().install();
+        installed = null;
+        LOG.info("Installed default pack window cache settings");
+        return true;
+    }
+
+    /**
+     * Returns a description of the settings currently installed by this class, or null if none were.
+     *
+     * @return
+     */
+    public static synchronized String getInstalled() {
+        return installed;
+    }
+
+    /**
+     * Returns a summary of what the window cache currently holds.
+     *
+     * @return
+     */
+    public static String getStatistics() {
+        return "Pack window cache: " + WindowCacheStatAccessor.getOpenFiles() + " open files, "
+                + (WindowCacheStatAccessor.getOpenBytes() / WindowCacheConfig.KB) + " KiB open";
+    }
+
+    private static String describe(WindowCacheConfig config) {
+        return (config.isPackedGitMMAP() ? "mmap" : "heap")
+                + ", window " + (config.getPackedGitWindowSize() / WindowCacheConfig.KB) + " KiB"
+                + ", " + config.getPackedGitOpenFiles() + " open files"
+                + ", limit " + (config.getPackedGitLimit() / WindowCacheConfig.MB) + " MiB"
+                + ", delta base cache " + (config.getDeltaBaseCacheLimit() / WindowCacheConfig.MB) + " MiB";
+    }
+}
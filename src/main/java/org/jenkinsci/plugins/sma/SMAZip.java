@@ -0,0 +1,180 @@
+package org.jenkinsci.plugins.sma;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A deployment or rollback package assembled on disk. The package is written to a temporary file so its size does
+ * not count against the heap; closing the handle deletes the file.
+ *
+ */
+public class SMAZip implements Closeable {
+    private static final String PREFIX = "sma-package";
+    private static final String SUFFIX = ".zip";
+
+    private final File file;
+    private String statistics = "";
+    private String hash;
+
+    private SMAZip(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Creates a handle to a new, empty temporary file
+     *
+     * @return
+     * @throws IOException
+     */
+    public static SMAZip createTemp() throws IOException {
+        return new SMAZip(File.createTempFile(PREFIX, SUFFIX));
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns a summary of how the package was assembled.
+     *
+     * @return
+     */
+    public String getStatistics() {
+        return statistics;
+    }
+
+    void setStatistics(String statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * Returns the SHA-256 hash of the package as hex. Packages are built reproducibly, so the same contents give
+     * the same hash.
+     *
+     * @return
+     * @throws IOException
+     */
+    public String getHash() throws IOException {
+        if (null != hash) {
+            return hash;
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            if (null != in) { in.close(); }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        hash = hex.toString();
+        return hash;
+    }
+
+    /**
+     * Returns the size of the package in bytes
+     *
+     * @return
+     */
+    public long length() {
+        return file.length();
+    }
+
+    /**
+     * Opens a stream over the package contents
+     *
+     * @return
+     * @throws IOException
+     */
+    public InputStream openStream() throws IOException {
+        return new BufferedInputStream(new FileInputStream(file));
+    }
+
+    /**
+     * Reads the whole package into memory, for APIs that can only take a byte array
+     *
+     * @return
+     * @throws IOException
+     */
+    public byte[] getBytes() throws IOException {
+        long length = length();
+
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Package " + file + " is too large to be read into memory: " + length + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        FileInputStream in = null;
+
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Keep reading until the buffer is full
+            }
+        } finally {
+            if (null != in) { in.close(); }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Copies the package to the given location, channel to channel
+     *
+     * @param destination
+     * @throws IOException
+     */
+    public void writeTo(File destination) throws IOException {
+        FileInputStream in = null;
+        FileOutputStream out = null;
+
+        try {
+            in = new FileInputStream(file);
+            out = new FileOutputStream(destination);
+            FileChannel source = in.getChannel();
+            FileChannel target = out.getChannel();
+            long size = source.size();
+            long position = 0;
+
+            while (position < size) {
+                position += source.transferTo(position, size - position, target);
+            }
+        } finally {
+            if (null != in) { in.close(); }
+            if (null != out) { out.close(); }
+        }
+    }
+
+    /**
+     * Deletes the package file.
+     */
+    public void close() {
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+}
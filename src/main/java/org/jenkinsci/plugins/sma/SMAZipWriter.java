@@ -0,0 +1,456 @@
+package org.jenkinsci.plugins.sma;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a zip archive to a file channel. Entry bodies that already are compressed, such as zipped static
+ * resources or images, are stored as they are; the others are deflated on a pool of worker threads and written in
+ * the order they were added. Bodies too large to hold in memory are streamed through on the calling thread, and
+ * their header is filled in once the body has been written. Every entry carries the same fixed timestamp, so
+ * the same entries always give the same bytes.
+ *
+ * Unlike ZipOutputStream, the writer does not support ZIP64, so an archive holds at most 65535 entries and 4 GB.
+ * Salesforce accepts at most 10,000 files in a deployment, well within these limits.
+ *
+ */
+public class SMAZipWriter implements Closeable {
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int VERSION = 20;
+    private static final int UTF8_NAMES = 0x0800;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final int CRC_OFFSET = 14;
+    private static final long MAX_SIZE = 0xFFFFFFFFL;
+    private static final int MAX_ENTRIES = 0xFFFF;
+    // 1980-01-01 00:00:00, the earliest DOS date
+    private static final int DOS_TIME = 0;
+    private static final int DOS_DATE = 1 << 5 | 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Bodies up to this size are read into memory and deflated on the workers
+    private static final int MAX_BUFFERED_BODY = 1024 * 1024;
+
+    private final FileChannel channel;
+    private final int level;
+    private final int threads;
+    private final ExecutorService pool;
+    private final Deque<Future<Entry>> window = new ArrayDeque<Future<Entry>>();
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private byte[] head;
+
+    private long position;
+    private long uncompressedBytes = 0;
+    private int storedEntries = 0;
+
+    /**
+     * Creates a writer that appends an archive to the given channel
+     *
+     * @param channel
+     * @param level Deflate level from 0 to 9; 0 stores every entry
+     * @param threads Number of threads deflating entries
+     * @throws IOException
+     */
+    public SMAZipWriter(FileChannel channel, int level, int threads) throws IOException {
+        this.channel = channel;
+        this.level = Math.max(Deflater.NO_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION, level));
+        this.threads = Math.max(1, threads);
+        this.position = channel.position();
+        this.pool = this.threads == 1 ? null : Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread worker = new Thread(runnable, "SMA zip writer " + count.incrementAndGet());
+                worker.setDaemon(true);
+                return worker;
+            }
+        });
+    }
+
+    /**
+     * Adds an entry whose body is in memory. The body must not be modified afterwards. Bodies too large to buffer
+     * are deflated straight into the archive rather than into a second buffer of the same size.
+     *
+     * @param name
+     * @param data
+     * @throws IOException
+     */
+    public void add(final String name, final byte[] data) throws IOException {
+        if (data.length > MAX_BUFFERED_BODY) {
+            drain();
+            writeStream(name, data, data.length, new ByteArrayInputStream(new byte[0]));
+            return;
+        }
+        if (null == pool) {
+            writeEntry(compress(name, data, data.length));
+            return;
+        }
+        window.add(pool.submit(new Callable<Entry>() {
+            public Entry call() throws Exception {
+                return compress(name, data, data.length);
+            }
+        }));
+        while (window.size() > threads * 2) {
+            writeEntry(take(window.poll()));
+        }
+    }
+
+    /**
+     * Adds an entry read from a stream. Small bodies join the parallel path; larger ones are streamed into the
+     * archive. The stream is read to its end but not closed.
+     *
+     * @param name
+     * @param body
+     * @throws IOException
+     */
+    public void add(String name, InputStream body) throws IOException {
+        if (null == head) {
+            head = new byte[MAX_BUFFERED_BODY + 1];
+        }
+        int length = readFully(body, head, 0, head.length);
+
+        if (length <= MAX_BUFFERED_BODY) {
+            add(name, Arrays.copyOf(head, length));
+        } else {
+            drain();
+            writeStream(name, head, length, body);
+        }
+    }
+
+    /**
+     * Writes the pending entries and the central directory. The channel is left open.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        drain();
+
+        if (entries.size() > MAX_ENTRIES) {
+            throw new IOException("Package has " + entries.size() + " entries, more than the " + MAX_ENTRIES
+                    + " a zip archive without ZIP64 can hold");
+        }
+        long directoryOffset = position;
+
+        for (Entry entry : entries) {
+            putInt(CENTRAL_HEADER);
+            putShort(VERSION);
+            putShort(VERSION);
+            putShort(UTF8_NAMES);
+            putShort(entry.method);
+            putShort(DOS_TIME);
+            putShort(DOS_DATE);
+            putInt((int) entry.crc);
+            putInt((int) entry.compressedSize);
+            putInt((int) entry.size);
+            putShort(entry.name.length);
+            putShort(0);
+            putShort(0);
+            putShort(0);
+            putShort(0);
+            putInt(0);
+            putInt((int) entry.offset);
+            write(entry.name, 0, entry.name.length);
+        }
+        long directorySize = position - directoryOffset;
+        checkSize(directoryOffset + directorySize);
+
+        putInt(END_OF_CENTRAL_DIRECTORY);
+        putShort(0);
+        putShort(0);
+        putShort(entries.size());
+        putShort(entries.size());
+        putInt((int) directorySize);
+        putInt((int) directoryOffset);
+        putShort(0);
+        flush();
+    }
+
+    /**
+     * Returns a summary of what was written.
+     *
+     * @return
+     */
+    public String getStatistics() {
+        return entries.size() + " entries (" + storedEntries + " stored as is), "
+                + uncompressedBytes + " bytes compressed to " + position;
+    }
+
+    /**
+     * Stops the workers. Entries not yet written are discarded.
+     */
+    public void close() {
+        if (null != pool) {
+            pool.shutdownNow();
+        }
+        window.clear();
+    }
+
+    /**
+     * Returns whether a body starts like a format that is compressed already, so deflating it gains nothing
+     *
+     * @param data
+     * @param length
+     * @return
+     */
+    static boolean isCompressed(byte[] data, int length) {
+        return startsWith(data, length, 0, 0x50, 0x4B, 0x03, 0x04)          // zip, jar, office documents
+                || startsWith(data, length, 0, 0x50, 0x4B, 0x05, 0x06)      // empty zip
+                || startsWith(data, length, 0, 0x1F, 0x8B)                  // gzip
+                || startsWith(data, length, 0, 0x42, 0x5A, 0x68)            // bzip2
+                || startsWith(data, length, 0, 0x37, 0x7A, 0xBC, 0xAF)      // 7z
+                || startsWith(data, length, 0, 0xFD, 0x37, 0x7A, 0x58, 0x5A) // xz
+                || startsWith(data, length, 0, 0x89, 0x50, 0x4E, 0x47)      // png
+                || startsWith(data, length, 0, 0xFF, 0xD8, 0xFF)            // jpeg
+                || startsWith(data, length, 0, 0x47, 0x49, 0x46, 0x38)      // gif
+                || startsWith(data, length, 0, 0x77, 0x4F, 0x46, 0x46)      // woff
+                || startsWith(data, length, 0, 0x77, 0x4F, 0x46, 0x32)      // woff2
+                || startsWith(data, length, 0, 0x49, 0x44, 0x33)            // mp3
+                || startsWith(data, length, 4, 0x66, 0x74, 0x79, 0x70)      // mp4, mov
+                || startsWith(data, length, 0, 0x52, 0x49, 0x46, 0x46) && startsWith(data, length, 8, 0x57, 0x45, 0x42, 0x50); // webp
+    }
+
+    private static boolean startsWith(byte[] data, int length, int offset, int... magic) {
+        if (length < offset + magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if ((data[offset + i] & 0xFF) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Deflates a body, or keeps it as is when it is compressed already or deflating does not make it smaller.
+     */
+    private Entry compress(String name, byte[] data, int length) throws IOException {
+        Entry entry = new Entry(name);
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        entry.crc = crc.getValue();
+        entry.size = length;
+        entry.method = STORED;
+        entry.data = data;
+        entry.compressedSize = length;
+
+        if (level == Deflater.NO_COMPRESSION || length == 0 || isCompressed(data, length)) {
+            return entry;
+        }
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+
+            // Anything that does not fit in the size of the body is not worth deflating
+            byte[] deflated = new byte[length];
+            int written = 0;
+            while (!deflater.finished() && written < deflated.length) {
+                written += deflater.deflate(deflated, written, deflated.length - written);
+            }
+            if (deflater.finished() && written < length) {
+                entry.method = DEFLATED;
+                entry.data = deflated;
+                entry.compressedSize = written;
+            }
+        } finally {
+            deflater.end();
+        }
+        return entry;
+    }
+
+    private void writeEntry(Entry entry) throws IOException {
+        entry.offset = position;
+        writeLocalHeader(entry);
+        write(entry.data, 0, (int) entry.compressedSize);
+        entry.data = null;
+        addEntry(entry);
+    }
+
+    private void writeStream(String name, byte[] head, int headLength, InputStream body) throws IOException {
+        Entry entry = new Entry(name);
+        entry.offset = position;
+        entry.method = level == Deflater.NO_COMPRESSION || isCompressed(head, headLength) ? STORED : DEFLATED;
+        writeLocalHeader(entry);
+
+        long start = position;
+        CRC32 crc = new CRC32();
+        Deflater deflater = entry.method == DEFLATED ? new Deflater(level, true) : null;
+        byte[] chunk = head;
+        int length = headLength;
+
+        try {
+            byte[] input = new byte[BUFFER_SIZE];
+            byte[] deflated = new byte[BUFFER_SIZE];
+
+            while (length > 0) {
+                crc.update(chunk, 0, length);
+                entry.size += length;
+
+                if (null == deflater) {
+                    write(chunk, 0, length);
+                } else {
+                    deflater.setInput(chunk, 0, length);
+                    while (!deflater.needsInput()) {
+                        write(deflated, 0, deflater.deflate(deflated));
+                    }
+                }
+                chunk = input;
+                length = readFully(body, chunk, 0, chunk.length);
+            }
+            if (null != deflater) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    write(deflated, 0, deflater.deflate(deflated));
+                }
+            }
+        } finally {
+            if (null != deflater) { deflater.end(); }
+        }
+        entry.crc = crc.getValue();
+        entry.compressedSize = position - start;
+        checkSize(entry.size);
+
+        // Fill in the header now that the sizes are known
+        flush();
+        ByteBuffer sizes = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        sizes.putInt((int) entry.crc).putInt((int) entry.compressedSize).putInt((int) entry.size).flip();
+        long at = entry.offset + CRC_OFFSET;
+        while (sizes.hasRemaining()) {
+            at += channel.write(sizes, at);
+        }
+        addEntry(entry);
+    }
+
+    private void writeLocalHeader(Entry entry) throws IOException {
+        checkSize(entry.offset);
+        putInt(LOCAL_HEADER);
+        putShort(VERSION);
+        putShort(UTF8_NAMES);
+        putShort(entry.method);
+        putShort(DOS_TIME);
+        putShort(DOS_DATE);
+        putInt((int) entry.crc);
+        putInt((int) entry.compressedSize);
+        putInt((int) entry.size);
+        putShort(entry.name.length);
+        putShort(0);
+        write(entry.name, 0, entry.name.length);
+    }
+
+    private void addEntry(Entry entry) throws IOException {
+        checkSize(entry.compressedSize);
+        entries.add(entry);
+        uncompressedBytes += entry.size;
+        if (entry.method == STORED) {
+            storedEntries++;
+        }
+    }
+
+    private void drain() throws IOException {
+        while (!window.isEmpty()) {
+            writeEntry(take(window.poll()));
+        }
+    }
+
+    private static Entry take(Future<Entry> pending) throws IOException {
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing the package", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static void checkSize(long size) throws IOException {
+        if (size > MAX_SIZE) {
+            throw new IOException("Package exceeds the 4 GB a zip archive without ZIP64 can hold");
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] data, int offset, int length) throws IOException {
+        int filled = 0;
+        int read;
+
+        while (filled < length && (read = in.read(data, offset + filled, length - filled)) >= 0) {
+            filled += read;
+        }
+        return filled;
+    }
+
+    private void putInt(int value) throws IOException {
+        ensure(4);
+        buffer.putInt(value);
+        position += 4;
+    }
+
+    private void putShort(int value) throws IOException {
+        ensure(2);
+        buffer.putShort((short) value);
+        position += 2;
+    }
+
+    private void write(byte[] data, int offset, int length) throws IOException {
+        if (length > buffer.remaining()) {
+            flush();
+        }
+        if (length >= buffer.capacity()) {
+            ByteBuffer direct = ByteBuffer.wrap(data, offset, length);
+            while (direct.hasRemaining()) {
+                channel.write(direct);
+            }
+        } else {
+            buffer.put(data, offset, length);
+        }
+        position += length;
+    }
+
+    private void ensure(int length) throws IOException {
+        if (buffer.remaining() < length) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static final class Entry {
+        private final byte[] name;
+        private int method;
+        private long crc;
+        private long compressedSize;
+        private long size;
+        private long offset;
+        private byte[] data;
+
+        private Entry(String name) throws IOException {
+            this.name = name.getBytes("UTF-8");
+            if (this.name.length > MAX_ENTRIES) {
+                throw new IOException("Entry name too long: " + name);
+            }
+        }
+    }
+}
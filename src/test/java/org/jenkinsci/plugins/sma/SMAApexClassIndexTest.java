@@ -0,0 +1,135 @@
+package org.jenkinsci.plugins.sma;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class SMAApexClassIndexTest
+{
+    private File localPath;
+    private Repository repository;
+    private ObjectReader reader;
+    private ObjectId blob;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        SMAApexClassIndex.clear();
+        localPath = File.createTempFile("TestApexClassIndex", "");
+        localPath.delete();
+        repository = FileRepositoryBuilder.create(new File(localPath, ".git"));
+        repository.create();
+        reader = repository.newObjectReader();
+
+        ObjectInserter inserter = repository.newObjectInserter();
+        try {
+            blob = inserter.insert(Constants.OBJ_BLOB, "public class Body {}".getBytes());
+            inserter.flush();
+        } finally {
+            inserter.close();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        SMAApexClassIndex.clear();
+        reader.close();
+        repository.close();
+        FileUtils.deleteDirectory(localPath);
+    }
+
+    @Test
+    public void testClassNames() throws Exception
+    {
+        ObjectId tree = writeTree(
+                "classes/First.cls",
+                "classes/First.cls-meta.xml",
+                "classes/nested/Second.cls",
+                "triggers/Third.trigger",
+                "triggers/Third.trigger-meta.xml",
+                "README.md"
+        );
+
+        Set<String> expected = new HashSet<String>(Arrays.asList("First", "Second"));
+        assertEquals(expected, SMAApexClassIndex.getClassNames(reader, tree));
+    }
+
+    @Test
+    public void testClassNamesOutsideClassesDirectory() throws Exception
+    {
+        ObjectId tree = writeTree(
+                "main/default/apex/First.cls",
+                "main/default/apex/First.cls-meta.xml",
+                "Second.cls"
+        );
+
+        Set<String> expected = new HashSet<String>(Arrays.asList("First", "Second"));
+        assertEquals(expected, SMAApexClassIndex.getClassNames(reader, tree));
+    }
+
+    @Test
+    public void testUnchangedSubtreesAreReused() throws Exception
+    {
+        String[] classes = new String[500];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = "classes/Class" + i + ".cls";
+        }
+        ObjectId first = writeTree(concat(classes, "pages/One.page"));
+        assertEquals(classes.length, SMAApexClassIndex.getClassNames(reader, first).size());
+        int cached = SMAApexClassIndex.size();
+
+        // Only the root and the pages directory are new, the classes directory is read from the cache
+        ObjectId second = writeTree(concat(classes, "pages/Two.page"));
+        assertEquals(classes.length, SMAApexClassIndex.getClassNames(reader, second).size());
+        assertEquals(cached + 2, SMAApexClassIndex.size());
+    }
+
+    private String[] concat(String[] paths, String extra)
+    {
+        String[] all = Arrays.copyOf(paths, paths.length + 1);
+        all[paths.length] = extra;
+        return all;
+    }
+
+    private ObjectId writeTree(String... paths) throws Exception
+    {
+        DirCache index = DirCache.newInCore();
+        DirCacheBuilder builder = index.builder();
+
+        for (String path : paths) {
+            DirCacheEntry entry = new DirCacheEntry(path);
+            entry.setFileMode(FileMode.REGULAR_FILE);
+            entry.setObjectId(blob);
+            builder.add(entry);
+        }
+        builder.finish();
+
+        ObjectInserter inserter = repository.newObjectInserter();
+        try {
+            ObjectId tree = index.writeTree(inserter);
+            inserter.flush();
+            return tree;
+        } finally {
+            inserter.close();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.jenkinsci.plugins.sma;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SMAApexScannerTest
+{
+    @Test
+    public void testIdentifiers() throws Exception
+    {
+        SMAApexScanner.Result scan = SMAApexScanner.scan(
+                "public with sharing class OrderService {\n" +
+                "    // Uses InvoiceHelper later\n" +
+                "    /* LegacyHelper is gone */\n" +
+                "    public void run() {\n" +
+                "        String label = 'PaymentHelper isn\\'t referenced';\n" +
+                "        Shipping_Util.ship(new Account());\n" +
+                "    }\n" +
+                "}\n"
+        );
+
+        assertTrue(scan.getIdentifiers().contains("orderservice"));
+        assertTrue(scan.getIdentifiers().contains("shipping_util"));
+        assertTrue(scan.getIdentifiers().contains("account"));
+        assertTrue(!scan.getIdentifiers().contains("invoicehelper"));
+        assertTrue(!scan.getIdentifiers().contains("legacyhelper"));
+        assertTrue(!scan.getIdentifiers().contains("paymenthelper"));
+        assertTrue(!scan.isTest());
+        assertNull(scan.getTriggerObject());
+    }
+
+    @Test
+    public void testTestClasses() throws Exception
+    {
+        assertTrue(SMAApexScanner.scan("@IsTest(SeeAllData=false)\nprivate class OrderServiceTest { }").isTest());
+        assertTrue(SMAApexScanner.scan("private class OldTest { static testMethod void run() { } }").isTest());
+        assertTrue(!SMAApexScanner.scan("public class IsTest { }").isTest());
+    }
+
+    @Test
+    public void testTrigger() throws Exception
+    {
+        SMAApexScanner.Result scan = SMAApexScanner.scan(
+                "/* Header */ trigger OpportunityTrigger on Opportunity (before insert) {\n" +
+                "    OpportunityHandler.handle(Trigger.new);\n" +
+                "}\n"
+        );
+
+        assertEquals("opportunity", scan.getTriggerObject());
+        assertTrue(scan.getIdentifiers().contains("opportunityhandler"));
+    }
+}
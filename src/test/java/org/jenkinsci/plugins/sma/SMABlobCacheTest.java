@@ -0,0 +1,70 @@
+package org.jenkinsci.plugins.sma;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class SMABlobCacheTest
+{
+    @Before
+    public void setUp() throws Exception
+    {
+        SMABlobCache.clear();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        SMABlobCache.clear();
+    }
+
+    @Test
+    public void testGetAndPut() throws Exception
+    {
+        ObjectId id = ObjectId.fromString("3b18e512dba79e4c8300dd08aeb37f8e728b8dad");
+        byte[] data = "hello world".getBytes();
+
+        assertNull(SMABlobCache.get(id));
+        SMABlobCache.put(id, data);
+
+        assertSame(data, SMABlobCache.get(ObjectId.fromString(id.name())));
+        assertEquals(data.length, SMABlobCache.size());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws Exception
+    {
+        byte[] block = new byte[1024 * 1024];
+        ObjectId first = blobId(0);
+
+        for (int i = 0; i < 64; i++) {
+            SMABlobCache.put(blobId(i), block);
+        }
+        // Touch the first entry so the second one is the oldest
+        SMABlobCache.get(first);
+        SMABlobCache.put(blobId(64), block);
+
+        assertSame(block, SMABlobCache.get(first));
+        assertNull(SMABlobCache.get(blobId(1)));
+        assertEquals(64L * 1024 * 1024, SMABlobCache.size());
+    }
+
+    @Test
+    public void testSkipsLargeBlobs() throws Exception
+    {
+        SMABlobCache.put(blobId(0), new byte[1024 * 1024 + 1]);
+
+        assertNull(SMABlobCache.get(blobId(0)));
+        assertEquals(0, SMABlobCache.size());
+    }
+
+    private ObjectId blobId(int i)
+    {
+        return ObjectId.fromString(String.format("%040x", i));
+    }
+}
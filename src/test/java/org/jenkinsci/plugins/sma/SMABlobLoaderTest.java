@@ -0,0 +1,183 @@
+package org.jenkinsci.plugins.sma;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.storage.file.WindowCacheConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SMABlobLoaderTest
+{
+    private SMABlobLoader loader;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        loader = new SMABlobLoader(4);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        loader.close();
+    }
+
+    @Test
+    public void testLoadKeepsOrder() throws Exception
+    {
+        List<SMABlob> blobs = new ArrayList<SMABlob>();
+
+        for (int i = 0; i < 1000; i++) {
+            byte[] data = new byte[i % 37];
+            Arrays.fill(data, (byte) i);
+            blobs.add(new SMABlob(data));
+        }
+        SMABlobLoader.Batch batch = loader.load(blobs);
+
+        for (SMABlob blob : blobs) {
+            assertTrue(batch.hasNext());
+            assertArrayEquals(blob.getBytes(), batch.next());
+        }
+        assertTrue(!batch.hasNext());
+    }
+
+    @Test
+    public void testPackageMatchesSingleThreaded() throws Exception
+    {
+        Map<String, SMABlob> data = new HashMap<String, SMABlob>();
+        List<SMAMetadata> members = new ArrayList<SMAMetadata>();
+        Random random = new Random(9);
+
+        for (int i = 0; i < 300; i++) {
+            StringBuilder body = new StringBuilder("public class Loaded" + i + " {\n");
+            for (int line = random.nextInt(200); line >= 0; line--) {
+                body.append("    Integer field").append(line).append(" = ").append(random.nextInt()).append(";\n");
+            }
+            String path = "classes/Loaded" + i + ".cls";
+            SMABlob blob = new SMABlob(body.toString().getBytes("UTF-8"));
+
+            data.put(path, blob);
+            members.add(SMAMetadataTypes.createMetadataObject("src/" + path, blob));
+        }
+        SMAPackage packageXml = new SMAPackage(members, false);
+        SMAPackage destructiveChanges = new SMAPackage(new ArrayList<SMAMetadata>(), true);
+
+        SMAZip sequential = SMAUtility.zipPackage(data, packageXml, destructiveChanges, 1);
+        SMAZip parallel = SMAUtility.zipPackage(data, packageXml, destructiveChanges, 4);
+        try {
+            assertArrayEquals(sequential.getBytes(), parallel.getBytes());
+        } finally {
+            sequential.close();
+            parallel.close();
+        }
+    }
+
+    @Test
+    public void testLargeBlobIsStreamed() throws Exception
+    {
+        File localPath = File.createTempFile("TestLargeBlob", "");
+        localPath.delete();
+        Repository repository = FileRepositoryBuilder.create(new File(localPath, ".git"));
+        repository.create();
+
+        // Blobs above the threshold can only be streamed from the repository
+        WindowCacheConfig lowThreshold = new WindowCacheConfig();
+        lowThreshold.setStreamFileThreshold(16 * 1024);
+        lowThreshold.install();
+
+        SMAGit git = null;
+        try {
+            File classesPath = new File(localPath, "src/classes");
+            classesPath.mkdirs();
+            Random random = new Random(9);
+            StringBuilder large = new StringBuilder("public class Large {\n");
+            while (large.length() < 256 * 1024) {
+                large.append("    Integer field").append(large.length()).append(" = ").append(random.nextInt()).append(";\n");
+            }
+            writeFile(new File(classesPath, "Large.cls"), large.append("}\n").toString());
+            writeFile(new File(classesPath, "Small.cls"), "public class Small {}\n");
+            new Git(repository).add().addFilepattern("src").call();
+            new Git(repository).commit().setMessage("Add a large class").call();
+
+            git = new SMAGit(localPath.getPath(), null, SMAGit.Mode.INI);
+            Map<String, SMABlob> data = new HashMap<String, SMABlob>();
+            List<SMAMetadata> members = new ArrayList<SMAMetadata>();
+
+            for (Map.Entry<String, ObjectId> file : git.getAllMetadata().entrySet()) {
+                SMABlob blob = new SMABlob(git, file.getValue());
+
+                data.put(file.getKey().substring("src/".length()), blob);
+                members.add(SMAMetadataTypes.createMetadataObject(file.getKey(), blob));
+            }
+            SMAPackage packageXml = new SMAPackage(members, false);
+            SMAPackage destructiveChanges = new SMAPackage(new ArrayList<SMAMetadata>(), true);
+
+            SMAZip sequential = SMAUtility.zipPackage(data, packageXml, destructiveChanges, 1);
+            SMAZip parallel = SMAUtility.zipPackage(data, packageXml, destructiveChanges, 4);
+            try {
+                assertArrayEquals(sequential.getBytes(), parallel.getBytes());
+            } finally {
+                sequential.close();
+                parallel.close();
+            }
+        } finally {
+            if (null != git) {
+                git.close();
+            }
+            new WindowCacheConfig().install();
+            repository.close();
+            FileUtils.deleteDirectory(localPath);
+        }
+    }
+
+    @Test
+    public void testLoadFailure() throws Exception
+    {
+        List<SMABlob> blobs = new ArrayList<SMABlob>();
+        blobs.add(new SMABlob("first".getBytes()));
+        blobs.add(new SMABlob((byte[]) null) {
+            @Override
+            public byte[] getBytes() throws Exception {
+                throw new IOException("Missing blob");
+            }
+        });
+        SMABlobLoader.Batch batch = loader.load(blobs);
+
+        assertEquals("first", new String(batch.next()));
+        try {
+            batch.next();
+            fail("Expected the read failure to be rethrown");
+        } catch (IOException e) {
+            assertEquals("Missing blob", e.getMessage());
+        }
+    }
+
+    private static void writeFile(File file, String contents) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.jenkinsci.plugins.sma;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SMAClassPatternMatcherTest
+{
+    @Test
+    public void testGlobs() throws Exception
+    {
+        Map<String, Set<String>> patterns = new HashMap<String, Set<String>>();
+        patterns.put("Account*Service", Collections.singleton("TST_AccountServices"));
+        patterns.put("ns__*", Collections.singleton("TST_Namespace"));
+        patterns.put("HNDL_?", Collections.singleton("TST_Handlers"));
+        patterns.put("*", Collections.<String>emptySet());
+        SMAClassPatternMatcher matcher = new SMAClassPatternMatcher(patterns);
+
+        assertEquals(Collections.singleton("TST_AccountServices"), matcher.getTests("AccountService"));
+        assertEquals(Collections.singleton("TST_AccountServices"), matcher.getTests("AccountSharingService"));
+        assertEquals(Collections.singleton("TST_Namespace"), matcher.getTests("ns__Anything"));
+        assertEquals(Collections.singleton("TST_Handlers"), matcher.getTests("HNDL_A"));
+        assertTrue(matcher.getTests("HNDL_AB").isEmpty());
+        assertTrue(matcher.getTests("AccountServices").isEmpty());
+        assertTrue(matcher.getTests("ns_Single").isEmpty());
+    }
+
+    @Test
+    public void testOverlappingPatterns() throws Exception
+    {
+        Map<String, Set<String>> patterns = new HashMap<String, Set<String>>();
+        patterns.put("Account*", Collections.singleton("TST_A"));
+        patterns.put("*Service", Collections.singleton("TST_B"));
+        patterns.put("*count*vice*", Collections.singleton("TST_C"));
+        SMAClassPatternMatcher matcher = new SMAClassPatternMatcher(patterns);
+
+        assertEquals(new HashSet<String>(Arrays.asList("TST_A", "TST_B", "TST_C")), matcher.getTests("AccountService"));
+        assertEquals(Collections.singleton("TST_B"), matcher.getTests("ContactService"));
+        assertEquals(Collections.singleton("TST_A"), matcher.getTests("Account"));
+    }
+
+    @Test
+    public void testMatchesRegexTranslation() throws Exception
+    {
+        Random random = new Random(7);
+        String alphabet = "ab*?";
+        Map<String, Set<String>> patterns = new HashMap<String, Set<String>>();
+
+        for (int i = 0; i < 200; i++) {
+            StringBuilder glob = new StringBuilder();
+            for (int j = random.nextInt(6); j >= 0; j--) {
+                glob.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            patterns.put(glob.toString(), Collections.singleton(glob.toString()));
+        }
+        SMAClassPatternMatcher matcher = new SMAClassPatternMatcher(patterns);
+
+        for (int i = 0; i < 500; i++) {
+            StringBuilder name = new StringBuilder();
+            for (int j = random.nextInt(8); j >= 0; j--) {
+                name.append(random.nextBoolean() ? 'a' : 'b');
+            }
+            Set<String> expected = new HashSet<String>();
+            for (String glob : patterns.keySet()) {
+                if (name.toString().matches(glob.replace("*", ".*").replace("?", "."))) {
+                    expected.add(glob);
+                }
+            }
+            assertEquals(name.toString(), expected, matcher.getTests(name.toString()));
+        }
+        assertTrue(matcher.getStateCount() > 1);
+    }
+
+    @Test
+    public void testIsPattern() throws Exception
+    {
+        assertTrue(SMAClassPatternMatcher.isPattern("Account*"));
+        assertTrue(SMAClassPatternMatcher.isPattern("HNDL_?"));
+        assertFalse(SMAClassPatternMatcher.isPattern("AccountService"));
+    }
+}
@@ -10,7 +10,6 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -30,7 +29,7 @@ public class SMAConnectionTest
     String proxyPass = "";
     Integer proxyPort;
     File localPath;
-    ByteArrayOutputStream boas;
+    SMAZip zip;
 
     @Before
     public void setUp() throws Exception
@@ -44,9 +43,9 @@ public class SMAConnectionTest
         sb.append("<status>Active</status>");
         sb.append("</ApexClass>");
 
-        Map<String, byte[]> metadata = new HashMap<String, byte[]>();
-        metadata.put("classes/TestApex.cls", apex.getBytes());
-        metadata.put("classes/TestApex.cls-meta.xml", sb.toString().getBytes());
+        Map<String, SMABlob> metadata = new HashMap<String, SMABlob>();
+        metadata.put("classes/TestApex.cls", new SMABlob(apex.getBytes()));
+        metadata.put("classes/TestApex.cls-meta.xml", new SMABlob(sb.toString().getBytes()));
 
         List<SMAMetadata> metadataList = new ArrayList<SMAMetadata>();
 
@@ -61,9 +60,9 @@ public class SMAConnectionTest
         SMAPackage packageManifest = new SMAPackage(metadataList, false);
         SMAPackage destructiveChange = new SMAPackage(new ArrayList<SMAMetadata>(), true);
 
-        boas = SMAUtility.zipPackage(metadata, packageManifest, destructiveChange);
+        zip = SMAUtility.zipPackage(metadata, packageManifest, destructiveChange);
 
-        SMAUtility.writeZip(boas, localPath.getPath() + "/testDeploy.zip");
+        SMAUtility.writeZip(zip, localPath.getPath() + "/testDeploy.zip");
 
 
     }
@@ -93,7 +92,7 @@ public class SMAConnectionTest
             );
 
             success = sfConnection.deployToServer(
-                    boas,
+                    zip,
                     TestLevel.NoTestRun,
                     null,
                     true,
@@ -163,6 +162,7 @@ public class SMAConnectionTest
     @After
     public void tearDown() throws Exception
     {
+        zip.close();
         localPath.delete();
     }
 }
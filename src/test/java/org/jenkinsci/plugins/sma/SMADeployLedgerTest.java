@@ -0,0 +1,162 @@
+package org.jenkinsci.plugins.sma;
+
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SMADeployLedgerTest
+{
+    private File rootDir;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        rootDir = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        FileUtils.deleteDirectory(rootDir);
+    }
+
+    @Test
+    public void testRecordAndLoad() throws Exception
+    {
+        SMADeployLedger ledger = SMADeployLedger.forJob(rootDir, "user@example.com", "https://test.salesforce.com", "deploy");
+        assertTrue(!ledger.exists());
+
+        Map<String, ObjectId> deployed = new HashMap<String, ObjectId>();
+        deployed.put("src/classes/Foo.cls", ObjectId.fromString("3b18e512dba79e4c8300dd08aeb37f8e728b8dad"));
+        deployed.put("src/classes/Foo.cls-meta.xml", ObjectId.fromString("e69de29bb2d1d6434b8b29ae775ad8c2e48c5391"));
+        ledger.record(deployed);
+
+        assertTrue(ledger.exists());
+        assertEquals(deployed, ledger.load());
+
+        // Recording again replaces the previous state
+        deployed.remove("src/classes/Foo.cls-meta.xml");
+        ledger.record(deployed);
+        assertEquals(deployed, new SMADeployLedger(ledger.getFile()).load());
+        assertEquals(1, ledger.getFile().getParentFile().list().length);
+    }
+
+    @Test
+    public void testPackageHash() throws Exception
+    {
+        SMADeployLedger ledger = SMADeployLedger.forJob(rootDir, "user@example.com", "https://test.salesforce.com", "deploy");
+        assertNull(ledger.getPackageHash());
+
+        ledger.recordPackageHash("9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08");
+        assertEquals("9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08",
+                SMADeployLedger.forJob(rootDir, "user@example.com", "https://test.salesforce.com", "deploy").getPackageHash());
+        // The package hash is kept apart from the deployed files
+        assertTrue(!ledger.exists());
+    }
+
+    @Test
+    public void testValidation() throws Exception
+    {
+        SMADeployLedger ledger = SMADeployLedger.forJob(rootDir, "user@example.com", "https://test.salesforce.com", "deploy");
+        assertNull(ledger.getValidation("abc", "RunLocalTests"));
+
+        ledger.recordValidation("abc", "RunLocalTests", "0Af000000000001");
+        assertEquals("0Af000000000001", ledger.getValidation("abc", "RunLocalTests"));
+        assertNull(ledger.getValidation("abd", "RunLocalTests"));
+        assertNull(ledger.getValidation("abc", "RunAllTestsInOrg"));
+
+        ledger.clearValidation();
+        assertNull(ledger.getValidation("abc", "RunLocalTests"));
+    }
+
+    @Test
+    public void testValidationSharedByOrg() throws Exception
+    {
+        SMADeployLedger validate = SMADeployLedger.forJob(rootDir, "user@example.com", "https://test.salesforce.com", "validate");
+        SMADeployLedger deploy = SMADeployLedger.forJob(rootDir, "user@example.com", "https://test.salesforce.com", "deploy");
+        SMADeployLedger otherOrg = SMADeployLedger.forJob(rootDir, "user@example.com.dev", "https://test.salesforce.com", "deploy");
+
+        validate.recordValidation("abc", "RunLocalTests", "0Af000000000001");
+        assertEquals("0Af000000000001", deploy.getValidation("abc", "RunLocalTests"));
+        assertNull(otherOrg.getValidation("abc", "RunLocalTests"));
+        // The deployed files stay per job
+        assertTrue(!validate.getFile().getParentFile().equals(deploy.getFile().getParentFile()));
+
+        deploy.clearValidation();
+        assertNull(validate.getValidation("abc", "RunLocalTests"));
+    }
+
+    @Test
+    public void testExpiredValidation() throws Exception
+    {
+        SMADeployLedger ledger = SMADeployLedger.forJob(rootDir, "user@example.com", "https://test.salesforce.com", "deploy");
+        ledger.recordValidation("abc", "RunLocalTests", "0Af000000000001");
+
+        File validation = new File(ledger.getFile().getParentFile().getParentFile(), "validation.properties");
+        Properties entries = new Properties();
+        entries.setProperty("sha256", "abc");
+        entries.setProperty("testLevel", "RunLocalTests");
+        entries.setProperty("id", "0Af000000000001");
+        entries.setProperty("time", String.valueOf(System.currentTimeMillis() - 11L * 24 * 60 * 60 * 1000));
+        PrintWriter out = new PrintWriter(validation);
+        entries.store(out, null);
+        out.close();
+
+        assertNull(ledger.getValidation("abc", "RunLocalTests"));
+    }
+
+    @Test
+    public void testOrgLocation() throws Exception
+    {
+        File production = SMADeployLedger.forJob(rootDir, "user@example.com", "https://login.salesforce.com", "deploy").getFile();
+        File sandbox = SMADeployLedger.forJob(rootDir, "user@example.com.dev", "https://test.salesforce.com", "deploy").getFile();
+
+        assertEquals("user@example.com@login.salesforce.com", production.getParentFile().getParentFile().getName());
+        assertTrue(!production.getParentFile().equals(sandbox.getParentFile()));
+    }
+
+    @Test
+    public void testJobLocation() throws Exception
+    {
+        SMADeployLedger first = SMADeployLedger.forJob(rootDir, "user@example.com", "https://test.salesforce.com", "folder/app-one");
+        SMADeployLedger second = SMADeployLedger.forJob(rootDir, "user@example.com", "https://test.salesforce.com", "app-two");
+
+        assertEquals("folder_app-one", first.getFile().getParentFile().getName());
+        assertEquals(first.getFile().getParentFile().getParentFile(), second.getFile().getParentFile().getParentFile());
+
+        // What the org holds is shared, the deployed files are not
+        first.recordPackageHash("abc");
+        assertEquals("abc", second.getPackageHash());
+        assertNull(SMADeployLedger.forJob(rootDir, "user@example.com.dev", "https://test.salesforce.com", "app-two").getPackageHash());
+        assertTrue(!second.exists());
+    }
+
+    @Test
+    public void testMalformedEntries() throws Exception
+    {
+        SMADeployLedger ledger = SMADeployLedger.forJob(rootDir, "user@example.com", "https://test.salesforce.com", "deploy");
+        ledger.getFile().getParentFile().mkdirs();
+
+        PrintWriter out = new PrintWriter(ledger.getFile());
+        out.println("src/classes/Foo.cls=3b18e512dba79e4c8300dd08aeb37f8e728b8dad");
+        out.println("src/classes/Bar.cls=not-a-sha");
+        out.close();
+
+        Map<String, ObjectId> deployed = ledger.load();
+        assertEquals(1, deployed.size());
+        assertTrue(deployed.containsKey("src/classes/Foo.cls"));
+    }
+}
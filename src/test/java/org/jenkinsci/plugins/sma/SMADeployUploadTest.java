@@ -0,0 +1,305 @@
+package org.jenkinsci.plugins.sma;
+
+import com.sforce.soap.metadata.DeployOptions;
+import com.sforce.soap.metadata.TestLevel;
+import com.sforce.ws.ConnectionException;
+import com.sforce.ws.ConnectorConfig;
+import com.sforce.ws.util.Base64;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the upload against a local stand-in for the Metadata API endpoint.
+ */
+public class SMADeployUploadTest
+{
+    private static final String DEPLOY_RESPONSE =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\" xmlns=\"http://soap.sforce.com/2006/04/metadata\">"
+            + "<soapenv:Body><deployResponse><result><done>false</done><id>0Af000000000001</id><state>Queued</state></result></deployResponse></soapenv:Body>"
+            + "</soapenv:Envelope>";
+
+    private static final String FAULT_RESPONSE =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+            + "<soapenv:Body><soapenv:Fault><faultcode>sf:INVALID_SESSION_ID</faultcode>"
+            + "<faultstring>INVALID_SESSION_ID: Invalid Session ID found in SessionHeader</faultstring></soapenv:Fault></soapenv:Body>"
+            + "</soapenv:Envelope>";
+
+    private HttpServer server;
+    private ConnectorConfig config;
+    private SMAZip zip;
+
+    private String response;
+    private int responseStatus;
+    private String sessionId;
+    private String contentLength;
+    private String contentEncoding;
+    private boolean countOnly;
+    private long bodyLength;
+    private String zipFile;
+    private List<String> options;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        response = DEPLOY_RESPONSE;
+        responseStatus = 200;
+        options = new ArrayList<String>();
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/services/Soap/m/36.0", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                try
+                {
+                    contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+                    contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+                    InputStream body = exchange.getRequestBody();
+                    if ("gzip".equals(contentEncoding))
+                    {
+                        body = new GZIPInputStream(body);
+                    }
+                    if (countOnly)
+                    {
+                        bodyLength = countBytes(body);
+                    }
+                    else
+                    {
+                        readRequest(body);
+                    }
+                }
+                catch (Exception e)
+                {
+                    throw new IOException(e);
+                }
+                byte[] body = response.getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=UTF-8");
+                OutputStream out;
+                if ("gzip".equals(exchange.getRequestHeaders().getFirst("Accept-Encoding")))
+                {
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                    exchange.sendResponseHeaders(responseStatus, 0);
+                    out = new GZIPOutputStream(exchange.getResponseBody());
+                }
+                else
+                {
+                    exchange.sendResponseHeaders(responseStatus, body.length);
+                    out = exchange.getResponseBody();
+                }
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+
+        config = new ConnectorConfig();
+        config.setServiceEndpoint("http://127.0.0.1:" + server.getAddress().getPort() + "/services/Soap/m/36.0");
+        config.setSessionId("00D000000000001!session&<id>");
+        zip = SMAZip.createTemp();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        server.stop(0);
+        zip.close();
+    }
+
+    private long countBytes(InputStream body) throws IOException
+    {
+        byte[] buffer = new byte[64 * 1024];
+        long count = 0;
+        int read;
+
+        while ((read = body.read(buffer)) >= 0)
+        {
+            count += read;
+        }
+        return count;
+    }
+
+    private void readRequest(InputStream body) throws Exception
+    {
+        XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(body, "UTF-8");
+        boolean inOptions = false;
+
+        while (reader.hasNext())
+        {
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT)
+            {
+                String name = reader.getLocalName();
+
+                if (name.equals("sessionId"))
+                {
+                    sessionId = reader.getElementText();
+                }
+                else if (name.equals("ZipFile"))
+                {
+                    zipFile = reader.getElementText();
+                }
+                else if (name.equals("DeployOptions"))
+                {
+                    inOptions = true;
+                }
+                else if (inOptions)
+                {
+                    options.add(name + "=" + reader.getElementText());
+                }
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("DeployOptions"))
+            {
+                inOptions = false;
+            }
+        }
+        reader.close();
+    }
+
+    private DeployOptions createOptions()
+    {
+        DeployOptions deployOptions = new DeployOptions();
+        deployOptions.setPerformRetrieve(false);
+        deployOptions.setRollbackOnError(true);
+        deployOptions.setSinglePackage(true);
+        deployOptions.setCheckOnly(true);
+        deployOptions.setTestLevel(TestLevel.RunSpecifiedTests);
+        deployOptions.setRunTests(new String[] { "TST_Account", "TST_Contact" });
+        return deployOptions;
+    }
+
+    @Test
+    public void testStreamsPackage() throws Exception
+    {
+        // Not a multiple of the chunk size or of 3, so the last chunk is padded
+        byte[] content = new byte[3 * 1024 * 1024 + 1];
+        new Random(21).nextBytes(content);
+        FileUtils.writeByteArrayToFile(zip.getFile(), content);
+        config.setCompression(false);
+
+        String id = new SMADeployUpload(config).deploy(zip, createOptions());
+
+        assertEquals("0Af000000000001", id);
+        assertNull(contentEncoding);
+        assertEquals("00D000000000001!session&<id>", sessionId);
+        assertArrayEquals(content, Base64.decode(zipFile.getBytes("UTF-8")));
+        assertTrue(Long.valueOf(contentLength) > (content.length / 3) * 4);
+        assertEquals(Arrays.asList(
+                "allowMissingFiles=false",
+                "autoUpdatePackage=false",
+                "checkOnly=true",
+                "ignoreWarnings=false",
+                "performRetrieve=false",
+                "purgeOnDelete=false",
+                "rollbackOnError=true",
+                "runTests=TST_Account",
+                "runTests=TST_Contact",
+                "singlePackage=true",
+                "testLevel=RunSpecifiedTests"), options);
+    }
+
+    @Test
+    public void testCompressedPackage() throws Exception
+    {
+        byte[] content = new byte[1024 * 1024 + 2];
+        new Random(21).nextBytes(content);
+        FileUtils.writeByteArrayToFile(zip.getFile(), content);
+        config.setCompression(true);
+
+        String id = new SMADeployUpload(config).deploy(zip, createOptions());
+
+        // The response came back gzipped as well
+        assertEquals("0Af000000000001", id);
+        assertEquals("gzip", contentEncoding);
+        assertNull(contentLength);
+        assertArrayEquals(content, Base64.decode(zipFile.getBytes("UTF-8")));
+        assertEquals(11, options.size());
+    }
+
+    /**
+     * Uploads a package several times the size of the heap. Only runs in the bounded heap test execution, which
+     * sets sma.upload.packageMb and caps -Xmx below it.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testBoundedHeap() throws Exception
+    {
+        int packageMb = Integer.getInteger("sma.upload.packageMb", 0);
+        Assume.assumeTrue(packageMb > 0);
+
+        byte[] block = new byte[1024 * 1024];
+        Random random = new Random(21);
+        FileOutputStream out = new FileOutputStream(zip.getFile());
+        try
+        {
+            for (int i = 0; i < packageMb; i++)
+            {
+                random.nextBytes(block);
+                out.write(block);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        countOnly = true;
+
+        for (boolean compression : new boolean[] { false, true })
+        {
+            config.setCompression(compression);
+            assertEquals("0Af000000000001", new SMADeployUpload(config).deploy(zip, createOptions()));
+            assertTrue(bodyLength > (long) packageMb * 1024 * 1024 / 3 * 4);
+        }
+    }
+
+    @Test
+    public void testEmptyPackage() throws Exception
+    {
+        assertEquals("0Af000000000001", new SMADeployUpload(config).deploy(zip, new DeployOptions()));
+        assertEquals("", zipFile);
+    }
+
+    @Test
+    public void testFault() throws Exception
+    {
+        FileUtils.writeByteArrayToFile(zip.getFile(), "PK".getBytes("UTF-8"));
+        response = FAULT_RESPONSE;
+        responseStatus = 500;
+
+        try
+        {
+            new SMADeployUpload(config).deploy(zip, createOptions());
+            fail("Expected the fault to be raised");
+        }
+        catch (ConnectionException e)
+        {
+            assertTrue(e.getMessage().startsWith("sf:INVALID_SESSION_ID: "));
+        }
+    }
+}
@@ -3,6 +3,16 @@ package org.jenkinsci.plugins.sma;
 import org.apache.commons.io.FileUtils;
 import org.eclipse.jgit.api.CreateBranchCommand;
 import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
@@ -11,6 +21,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -18,7 +29,10 @@ import java.util.List;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class SMAGitTest
 {
@@ -98,6 +112,10 @@ public class SMAGitTest
     @After
     public void tearDown() throws Exception
     {
+        if (null != git)
+        {
+            git.close();
+        }
         repository.close();
         FileUtils.deleteDirectory(localPath);
     }
@@ -121,15 +139,243 @@ public class SMAGitTest
 
         git = new SMAGit(gitDir, oldSha, SMAGit.Mode.STD);
 
-        Map<String, byte[]> deletedContents = git.getDeletedMetadata();
-        Map<String, byte[]> modifiedContents = git.getUpdatedMetadata();
-        Map<String, byte[]> addedContents = git.getNewMetadata();
+        Map<String, ObjectId> deletedContents = git.getDeletedMetadata();
+        Map<String, ObjectId> modifiedContents = git.getUpdatedMetadata();
+        Map<String, ObjectId> addedContents = git.getNewMetadata();
 
         assertEquals(expectedAdds.size(), addedContents.size());
         assertEquals(expectedMods.size(), modifiedContents.size());
         assertEquals(expectedDelete.size(), deletedContents.size());
     }
 
+    /**
+     * Test that changes outside of a source directory are not part of the diff.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testDiffOutsideSource() throws Exception
+    {
+        File buildPath = new File(localPath, "build/classes");
+        buildPath.mkdirs();
+        createFile("README.md", localPath);
+        createFile("Generated.cls", buildPath);
+        new Git(repository).add().addFilepattern("README.md").call();
+        new Git(repository).add().addFilepattern("build/classes/Generated.cls").call();
+        new Git(repository).commit().setMessage("Add files outside of src").call();
+
+        git = new SMAGit(gitDir, oldSha, SMAGit.Mode.STD);
+
+        assertEquals(1, git.getNewMetadata().size());
+        assertTrue(git.getNewMetadata().containsKey("src/triggers/addThis.trigger"));
+        assertEquals(1, git.getUpdatedMetadata().size());
+        assertEquals(1, git.getDeletedMetadata().size());
+    }
+
+    /**
+     * Test that moved components keep their identity when rename detection is enabled.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRenameDetection() throws Exception
+    {
+        File classesPath = new File(localPath, "src/classes");
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 10; i++)
+        {
+            body.append("    Integer line").append(i).append(" = ").append(i).append(";\n");
+        }
+        writeFile(new File(classesPath, "keepThis.cls"), "public class keepThis {\n" + body + "}\n");
+        writeFile(addition, "trigger addThis on Account (before insert) { }\n");
+        new Git(repository).add().addFilepattern("src/classes/keepThis.cls").call();
+        new Git(repository).add().addFilepattern("src/triggers/addThis.trigger").call();
+        String baseSha = new Git(repository).commit().setMessage("Add keepThis").call().getName();
+
+        // Move the page as is, rename the trigger, and move the class with a small change
+        File movedPages = new File(localPath, "src/pages/moved");
+        File movedClasses = new File(classesPath, "moved");
+        movedPages.mkdirs();
+        movedClasses.mkdirs();
+        assertTrue(modification.renameTo(new File(movedPages, "modifyThis.page")));
+        assertTrue(modifyMeta.renameTo(new File(movedPages, "modifyThis.page-meta.xml")));
+        assertTrue(addition.renameTo(new File(addition.getParentFile(), "renamedThis.trigger")));
+        assertTrue(new File(classesPath, "keepThis.cls").delete());
+        writeFile(new File(movedClasses, "keepThis.cls"), "public class keepThis {\n" + body + "    // moved\n}\n");
+
+        Git move = new Git(repository);
+        move.rm().addFilepattern("src/pages/modifyThis.page").addFilepattern("src/pages/modifyThis.page-meta.xml")
+                .addFilepattern("src/triggers/addThis.trigger").addFilepattern("src/classes/keepThis.cls").call();
+        move.add().addFilepattern("src/pages/moved").addFilepattern("src/triggers/renamedThis.trigger")
+                .addFilepattern("src/classes/moved").call();
+        move.commit().setMessage("Move things around").call();
+
+        git = new SMAGit(gitDir, baseSha, SMAGit.Mode.STD);
+        assertEquals(3, git.getNewMetadata().size());
+        git.close();
+
+        git = new SMAGit(gitDir, baseSha, SMAGit.Mode.STD, 50);
+        Map<String, ObjectId> added = git.getNewMetadata();
+        Map<String, ObjectId> deleted = git.getDeletedMetadata();
+        Map<String, ObjectId> updated = git.getUpdatedMetadata();
+
+        assertEquals(1, added.size());
+        assertTrue(added.containsKey("src/triggers/renamedThis.trigger"));
+        assertEquals(1, deleted.size());
+        assertTrue(deleted.containsKey("src/triggers/addThis.trigger"));
+        assertEquals(1, updated.size());
+        assertTrue(updated.containsKey("src/classes/moved/keepThis.cls"));
+        assertTrue(git.getOriginalMetadata().containsKey("src/classes/keepThis.cls"));
+    }
+
+    /**
+     * Test the changes computed against a deployed state instead of a previous commit.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testDeployedStateDelta() throws Exception
+    {
+        git = new SMAGit(gitDir, null, SMAGit.Mode.INI);
+        Map<String, ObjectId> deployed = git.getAllMetadata();
+        git.close();
+
+        ObjectId gone = ObjectId.fromString("3b18e512dba79e4c8300dd08aeb37f8e728b8dad");
+        deployed.put("src/classes/goneThis.cls", gone);
+        deployed.put("src/classes/goneThis.cls-meta.xml", gone);
+        deployed.remove("src/triggers/addThis.trigger");
+        deployed.remove("src/triggers/addThis.trigger-meta.xml");
+
+        writeFile(modification, "Modified the page again\n");
+        new Git(repository).add().addFilepattern("src/pages/modifyThis.page").call();
+        new Git(repository).commit().setMessage("Modify modifyThis again").call();
+
+        git = new SMAGit(gitDir, deployed);
+
+        assertEquals(null, git.getPreviousCommit());
+        assertEquals(1, git.getNewMetadata().size());
+        assertTrue(git.getNewMetadata().containsKey("src/triggers/addThis.trigger"));
+        assertEquals(1, git.getUpdatedMetadata().size());
+        assertEquals(deployed.get("src/pages/modifyThis.page"),
+                git.getOriginalMetadata().get("src/pages/modifyThis.page"));
+        assertEquals(1, git.getDeletedMetadata().size());
+        assertEquals(gone, git.getDeletedMetadata().get("src/classes/goneThis.cls"));
+        assertFalse(git.hasObject(gone));
+        assertTrue(git.hasObject(deployed.get("src/pages/modifyThis.page")));
+    }
+
+    /**
+     * Test that moved components are detected as renames against a deployed state too.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testDeployedStateRename() throws Exception
+    {
+        git = new SMAGit(gitDir, null, SMAGit.Mode.INI);
+        Map<String, ObjectId> deployed = git.getAllMetadata();
+        git.close();
+
+        ObjectId gone = ObjectId.fromString("3b18e512dba79e4c8300dd08aeb37f8e728b8dad");
+        deployed.put("src/classes/goneThis.cls", gone);
+
+        File movedPages = new File(localPath, "src/pages/moved");
+        movedPages.mkdirs();
+        assertTrue(modification.renameTo(new File(movedPages, "modifyThis.page")));
+        assertTrue(modifyMeta.renameTo(new File(movedPages, "modifyThis.page-meta.xml")));
+
+        Git move = new Git(repository);
+        move.rm().addFilepattern("src/pages/modifyThis.page").addFilepattern("src/pages/modifyThis.page-meta.xml").call();
+        move.add().addFilepattern("src/pages/moved").call();
+        move.commit().setMessage("Move modifyThis").call();
+
+        git = new SMAGit(gitDir, deployed);
+        assertEquals(1, git.getNewMetadata().size());
+        assertEquals(2, git.getDeletedMetadata().size());
+        git.close();
+
+        git = new SMAGit(gitDir, deployed, 50, null);
+        assertEquals(0, git.getNewMetadata().size());
+        assertEquals(0, git.getUpdatedMetadata().size());
+        assertEquals(1, git.getDeletedMetadata().size());
+        assertEquals(gone, git.getDeletedMetadata().get("src/classes/goneThis.cls"));
+    }
+
+    /**
+     * Test that the classified diff is reused and keeps both sides of a modification.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testClassifiedDiff() throws Exception
+    {
+        git = new SMAGit(gitDir, oldSha, SMAGit.Mode.STD);
+
+        Map<String, ObjectId> updated = git.getUpdatedMetadata();
+        Map<String, ObjectId> original = git.getOriginalMetadata();
+
+        assertEquals(updated, git.getUpdatedMetadata());
+        assertTrue(!updated.get("src/pages/modifyThis.page").equals(original.get("src/pages/modifyThis.page")));
+
+        // Callers may merge the maps they get back without affecting later calls
+        updated.putAll(git.getNewMetadata());
+        assertEquals(1, git.getUpdatedMetadata().size());
+    }
+
+    /**
+     * Test that blobs read through the session are resolved the same way for repeated and missing paths.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSessionBlobLookup() throws Exception
+    {
+        git = new SMAGit(gitDir, oldSha, SMAGit.Mode.STD);
+
+        ObjectId page = git.getBlobId("src/pages/modifyThis.page", git.getCurrentCommit());
+        ObjectId pageMeta = git.getBlobId("src/pages/modifyThis.page-meta.xml", git.getCurrentCommit());
+
+        assertEquals(git.getUpdatedMetadata().get("src/pages/modifyThis.page"), page);
+        assertEquals(page, git.getBlobId("src/pages/modifyThis.page", git.getCurrentCommit()));
+        assertEquals(contents + "\n", new String(git.getBlob(pageMeta)));
+        assertEquals(git.getOriginalMetadata().get("src/pages/modifyThis.page"),
+                git.getBlobId("src/pages/modifyThis.page", oldSha));
+        assertEquals("Modified the page\n", new String(git.getBlob("src/pages/modifyThis.page", git.getCurrentCommit())));
+
+        for (String missing : new String[] { "src/pages/missing.page", "src/missing/missing.page", "src/pages" })
+        {
+            try
+            {
+                git.getBlobId(missing, git.getCurrentCommit());
+                fail("Expected no blob for " + missing);
+            }
+            catch (IllegalStateException e)
+            {
+                assertTrue(e.getMessage().contains(missing));
+            }
+        }
+    }
+
+    /**
+     * Test that repeated reads of a blob are served from the shared blob cache.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testBlobCacheStatistics() throws Exception
+    {
+        SMABlobCache.clear();
+        git = new SMAGit(gitDir, oldSha, SMAGit.Mode.STD);
+        ObjectId page = git.getUpdatedMetadata().get("src/pages/modifyThis.page");
+
+        byte[] first = git.getBlob(page);
+        InputStream second = git.openBlob(page);
+        second.close();
+
+        assertSame(first, git.getBlob(page));
+        assertEquals("Blob cache: 2 hits, 1 misses", git.getCacheStatistics());
+    }
+
     /**
      * Test the overloaded constructors.
      *
@@ -146,11 +392,130 @@ public class SMAGitTest
 
         git = new SMAGit(gitDir, null, SMAGit.Mode.INI);
 
-        Map<String, byte[]> allMetadata = git.getAllMetadata();
+        Map<String, ObjectId> allMetadata = git.getAllMetadata();
 
         assertEquals(expectedContents.size(), allMetadata.size());
     }
 
+    /**
+     * Test the full listing against a repository with 100k source files spread over many directories, plus files
+     * outside of the source root that must not be listed.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testAllMetadataLargeTree() throws Exception
+    {
+        int directories = 100;
+        int filesPerDirectory = 1000;
+
+        ObjectInserter inserter = repository.newObjectInserter();
+        try
+        {
+            ObjectId blob = inserter.insert(Constants.OBJ_BLOB, contents.getBytes());
+            DirCache index = DirCache.newInCore();
+            DirCacheBuilder builder = index.builder();
+
+            for (int d = 0; d < directories; d++)
+            {
+                for (int f = 0; f < filesPerDirectory; f++)
+                {
+                    builder.add(createEntry("src/classes" + d + "/Class" + f + ".cls", blob));
+                }
+            }
+            builder.add(createEntry("README.md", blob));
+            builder.add(createEntry("build/classes/Generated.cls", blob));
+            builder.finish();
+
+            CommitBuilder commit = new CommitBuilder();
+            PersonIdent ident = new PersonIdent("Test Guy", "testguy@example.net");
+            commit.setTreeId(index.writeTree(inserter));
+            commit.setParentId(repository.resolve(Constants.HEAD));
+            commit.setAuthor(ident);
+            commit.setCommitter(ident);
+            commit.setMessage("Add a large tree");
+            ObjectId commitId = inserter.insert(commit);
+            inserter.flush();
+
+            RefUpdate head = repository.updateRef(Constants.HEAD);
+            head.setNewObjectId(commitId);
+            head.forceUpdate();
+
+            git = new SMAGit(gitDir, null, SMAGit.Mode.INI);
+            Map<String, ObjectId> allMetadata = git.getAllMetadata();
+
+            assertEquals(directories * filesPerDirectory, allMetadata.size());
+            assertEquals(blob, allMetadata.get("src/classes99/Class999.cls"));
+            assertFalse(allMetadata.containsKey("build/classes/Generated.cls"));
+        }
+        finally
+        {
+            inserter.close();
+        }
+    }
+
+    /**
+     * Test that source directories below the root of the repository are listed, diffed and indexed.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testNestedSourceRoot() throws Exception
+    {
+        File nestedClasses = new File(localPath, "force-app/src/classes");
+        nestedClasses.mkdirs();
+        createFile("Nested.cls", nestedClasses);
+        createFile("Nested.cls-meta.xml", nestedClasses);
+        new Git(repository).add().addFilepattern("force-app").call();
+        new Git(repository).commit().setMessage("Add a nested source directory").call();
+
+        git = new SMAGit(gitDir, null, SMAGit.Mode.INI);
+        Map<String, ObjectId> allMetadata = git.getAllMetadata();
+
+        assertEquals(6, allMetadata.size());
+        assertTrue(allMetadata.containsKey("force-app/src/classes/Nested.cls"));
+        assertEquals(2, git.getSourceTreeIds().size());
+        assertTrue(git.getApexClassNames().contains("Nested"));
+        git.close();
+
+        git = new SMAGit(gitDir, oldSha, SMAGit.Mode.STD);
+        assertEquals(2, git.getNewMetadata().size());
+        assertTrue(git.getNewMetadata().containsKey("force-app/src/classes/Nested.cls"));
+    }
+
+    /**
+     * Test that a configured source root limits the listing and the diff to that directory.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testConfiguredSourceRoot() throws Exception
+    {
+        File nestedClasses = new File(localPath, "force-app/src/classes");
+        File otherClasses = new File(localPath, "other/src/classes");
+        nestedClasses.mkdirs();
+        otherClasses.mkdirs();
+        createFile("Nested.cls", nestedClasses);
+        createFile("Other.cls", otherClasses);
+        new Git(repository).add().addFilepattern("force-app").addFilepattern("other").call();
+        new Git(repository).commit().setMessage("Add two nested source directories").call();
+
+        git = new SMAGit(gitDir, null, SMAGit.Mode.INI, null, "force-app/src");
+        Map<String, ObjectId> allMetadata = git.getAllMetadata();
+
+        assertEquals(1, allMetadata.size());
+        assertTrue(allMetadata.containsKey("force-app/src/classes/Nested.cls"));
+        assertEquals(1, git.getSourceTreeIds().size());
+        assertEquals(1, git.getApexClassNames().size());
+        git.close();
+
+        git = new SMAGit(gitDir, oldSha, SMAGit.Mode.STD, null, "force-app/src");
+        assertEquals(1, git.getNewMetadata().size());
+        assertTrue(git.getNewMetadata().containsKey("force-app/src/classes/Nested.cls"));
+        assertTrue(git.getUpdatedMetadata().isEmpty());
+        assertTrue(git.getDeletedMetadata().isEmpty());
+    }
+
     /**
      * Test the ghprb constructor.
      *
@@ -173,11 +538,55 @@ public class SMAGitTest
 
         git = new SMAGit(gitDir, "oldBranch", SMAGit.Mode.PRB);
 
-        Map<String, byte[]> allMetadata = git.getAllMetadata();
+        Map<String, ObjectId> allMetadata = git.getAllMetadata();
 
         assertEquals(expectedContents.size(), allMetadata.size());
     }
 
+    /**
+     * Test that the pull request target branch is fetched again once it moved upstream.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testPullRequestTargetMoved() throws Exception
+    {
+        File clonePath = File.createTempFile("TestGitClone", "");
+        clonePath.delete();
+        Git clone = Git.cloneRepository()
+                .setURI(localPath.toURI().toString())
+                .setDirectory(clonePath)
+                .call();
+        try
+        {
+            String branch = repository.getBranch();
+
+            git = new SMAGit(clonePath.getPath(), branch, SMAGit.Mode.PRB);
+            String firstTarget = git.getPreviousCommit();
+            assertEquals(repository.resolve(Constants.HEAD).getName(), firstTarget);
+            git.close();
+
+            // The target branch moves upstream between two runs
+            writeFile(modification, "Modified the page again");
+            new Git(repository).add().addFilepattern("src/pages/modifyThis.page").call();
+            RevCommit moved = new Git(repository).commit().setMessage("Modify modifyThis again").call();
+
+            git = new SMAGit(clonePath.getPath(), branch, SMAGit.Mode.PRB);
+            assertEquals(moved.getName(), git.getPreviousCommit());
+            assertFalse(firstTarget.equals(git.getPreviousCommit()));
+        }
+        finally
+        {
+            if (null != git)
+            {
+                git.close();
+                git = null;
+            }
+            clone.close();
+            FileUtils.deleteDirectory(clonePath);
+        }
+    }
+
     /**
      * Test the ability to update the package manifest.
      *
@@ -186,7 +595,7 @@ public class SMAGitTest
     @Test
     public void testCommitPackageXML() throws Exception
     {
-        Map<String, byte[]> metadataContents = new HashMap<String, byte[]>();
+        Map<String, ObjectId> metadataContents = new HashMap<String, ObjectId>();
         List<SMAMetadata> metadata = new ArrayList<SMAMetadata>();
 
         git = new SMAGit(gitDir, oldSha, SMAGit.Mode.STD);
@@ -195,7 +604,7 @@ public class SMAGitTest
 
         for (String s : metadataContents.keySet())
         {
-            metadata.add(SMAMetadataTypes.createMetadataObject(s, metadataContents.get(s)));
+            metadata.add(SMAMetadataTypes.createMetadataObject(s, new SMABlob(git, metadataContents.get(s))));
         }
 
         SMAPackage manifest = new SMAPackage(metadata, false);
@@ -224,7 +633,7 @@ public class SMAGitTest
         new Git(repository).add().addFilepattern("src/package.xml").call();
         new Git(repository).commit().setMessage("Add package.xml").call();
 
-        Map<String, byte[]> metadataContents = new HashMap<String, byte[]>();
+        Map<String, ObjectId> metadataContents = new HashMap<String, ObjectId>();
         List<SMAMetadata> metadata = new ArrayList<SMAMetadata>();
 
         git = new SMAGit(gitDir, oldSha, SMAGit.Mode.STD);
@@ -233,7 +642,7 @@ public class SMAGitTest
 
         for (String s : metadataContents.keySet())
         {
-            metadata.add(SMAMetadataTypes.createMetadataObject(s, metadataContents.get(s)));
+            metadata.add(SMAMetadataTypes.createMetadataObject(s, new SMABlob(git, metadataContents.get(s))));
         }
 
         SMAPackage manifest = new SMAPackage(metadata, false);
@@ -252,6 +661,21 @@ public class SMAGitTest
         assertTrue(!unexpectedPackage.exists());
     }
 
+    private DirCacheEntry createEntry(String path, ObjectId blob)
+    {
+        DirCacheEntry entry = new DirCacheEntry(path);
+        entry.setFileMode(FileMode.REGULAR_FILE);
+        entry.setObjectId(blob);
+        return entry;
+    }
+
+    private void writeFile(File file, String text) throws Exception
+    {
+        PrintWriter print = new PrintWriter(file);
+        print.print(text);
+        print.close();
+    }
+
     private File createFile(String name, File path) throws Exception
     {
         File thisFile;
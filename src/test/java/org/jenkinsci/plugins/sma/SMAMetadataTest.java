@@ -3,7 +3,11 @@ package org.jenkinsci.plugins.sma;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class SMAMetadataTest {
@@ -67,4 +71,24 @@ public class SMAMetadataTest {
             assertTrue(!metadataObject.hasMetaxml());
         }
     }
+
+    @Test
+    public void testSharedTypeAndPath() throws Exception {
+        // Synthetic repository: every path string is a distinct instance, as it would be coming out of a tree walk
+        int components = 50000;
+        List<SMAMetadata> repository = new ArrayList<SMAMetadata>(components);
+
+        for (int i = 0; i < components; i++) {
+            String directory = new StringBuilder("src/classes/").toString();
+            repository.add(SMAMetadataTypes.createMetadataObject(directory + "Class" + i + ".cls", (SMABlob) null));
+        }
+        SMAMetadata first = repository.get(0);
+
+        for (SMAMetadata md : repository) {
+            assertSame(first.getType(), md.getType());
+            assertSame(first.getPath(), md.getPath());
+        }
+        assertEquals("ApexClass", first.getMetadataType());
+        assertEquals("Class49999", repository.get(components - 1).getMember());
+    }
 }
\ No newline at end of file
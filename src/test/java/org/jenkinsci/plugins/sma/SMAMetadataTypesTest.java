@@ -0,0 +1,79 @@
+package org.jenkinsci.plugins.sma;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SMAMetadataTypesTest {
+
+    @Test
+    public void testGetAPIVersion() throws Exception {
+        assertEquals("34.0", SMAMetadataTypes.getAPIVersion());
+    }
+
+    @Test
+    public void testGetType() throws Exception {
+        SMAMetadataType apex = SMAMetadataTypes.getType("cls");
+
+        assertEquals("ApexClass", apex.getMetadataType());
+        assertEquals("classes", apex.getContainer());
+        assertTrue(apex.hasMetaxml());
+        assertSame(apex, SMAMetadataTypes.getType("cls"));
+        assertNull(SMAMetadataTypes.getType("notAType"));
+    }
+
+    @Test
+    public void testCreateMetadataObject() throws Exception {
+        SMAMetadata apex = SMAMetadataTypes.createMetadataObject("src/classes/TestApex.cls", "".getBytes());
+
+        assertTrue(apex.isValid());
+        assertEquals("TestApex", apex.getMember());
+        assertEquals("src/classes/", apex.getPath());
+        assertEquals("cls", apex.getExtension());
+        assertEquals("ApexClass", apex.getMetadataType());
+    }
+
+    @Test
+    public void testCreateInvalidMetadataObject() throws Exception {
+        SMAMetadata metaXml = SMAMetadataTypes.createMetadataObject("src/classes/TestApex.cls-meta.xml", "".getBytes());
+        SMAMetadata noExtension = SMAMetadataTypes.createMetadataObject("src/README", "".getBytes());
+
+        assertTrue(!metaXml.isValid());
+        assertEquals("TestApex.cls-meta", metaXml.getMember());
+        assertEquals("xml", metaXml.getExtension());
+        assertTrue(!noExtension.isValid());
+        assertEquals("README", noExtension.getMember());
+        assertEquals("", noExtension.getExtension());
+        assertSame(SMAMetadataType.INVALID, metaXml.getType());
+        assertSame(SMAMetadataType.INVALID, noExtension.getType());
+    }
+
+    @Test
+    public void testConcurrentGetDefault() throws Exception {
+        final SMAMetadataTypes[] results = new SMAMetadataTypes[8];
+        Thread[] threads = new Thread[results.length];
+
+        for (int i = 0; i < threads.length; i++) {
+            final int slot = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        results[slot] = SMAMetadataTypes.getDefault();
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (SMAMetadataTypes result : results) {
+            assertSame(results[0], result);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.jenkinsci.plugins.sma;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SMAPollScheduleTest
+{
+    private static final long HOUR = 60 * 60 * 1000;
+
+    @Test
+    public void testBacksOffWithoutProgress() throws Exception
+    {
+        SMAPollSchedule schedule = new SMAPollSchedule(1000, 30000, HOUR, new Random(25));
+
+        schedule.next(0);
+        assertEquals(1000, schedule.getInterval());
+        schedule.next(0);
+        assertEquals(2000, schedule.getInterval());
+        schedule.next(0);
+        assertEquals(4000, schedule.getInterval());
+
+        for (int i = 0; i < 10; i++)
+        {
+            schedule.next(0);
+        }
+        assertEquals(30000, schedule.getInterval());
+    }
+
+    @Test
+    public void testProgressShortensWait() throws Exception
+    {
+        SMAPollSchedule schedule = new SMAPollSchedule(1000, 30000, HOUR, new Random(25));
+
+        for (int i = 0; i < 6; i++)
+        {
+            schedule.next(0);
+        }
+        assertEquals(30000, schedule.getInterval());
+
+        schedule.next(10);
+        assertEquals(15000, schedule.getInterval());
+        schedule.next(20);
+        assertEquals(7500, schedule.getInterval());
+        schedule.next(20);
+        assertEquals(15000, schedule.getInterval());
+
+        for (int i = 0; i < 10; i++)
+        {
+            schedule.next(100 + i);
+        }
+        assertEquals(1000, schedule.getInterval());
+    }
+
+    @Test
+    public void testJitter() throws Exception
+    {
+        SMAPollSchedule schedule = new SMAPollSchedule(1000, 8000, HOUR, new Random(25));
+        long first = -1;
+        boolean varies = false;
+
+        for (int i = 0; i < 50; i++)
+        {
+            long wait = schedule.next(0);
+            long interval = schedule.getInterval();
+
+            assertTrue(wait >= interval / 2);
+            assertTrue(wait <= interval);
+            if (interval == 8000)
+            {
+                if (first < 0)
+                {
+                    first = wait;
+                }
+                varies |= wait != first;
+            }
+        }
+        assertTrue(varies);
+    }
+
+    @Test
+    public void testDeadline() throws Exception
+    {
+        SMAPollSchedule schedule = new SMAPollSchedule(1000, 30000, 0, new Random(25));
+
+        assertTrue(schedule.isExpired());
+        assertEquals(0, schedule.next(0));
+
+        schedule = new SMAPollSchedule(1000, 30000, 5000, new Random(25));
+        assertFalse(schedule.isExpired());
+        for (int i = 0; i < 10; i++)
+        {
+            assertTrue(schedule.next(0) <= 5000);
+        }
+    }
+
+    @Test
+    public void testCeilingBelowMinimum() throws Exception
+    {
+        SMAPollSchedule schedule = new SMAPollSchedule(1000, 200, HOUR, new Random(25));
+
+        schedule.next(0);
+        schedule.next(0);
+        assertEquals(200, schedule.getInterval());
+        assertTrue(schedule.next(0) <= 200);
+    }
+}
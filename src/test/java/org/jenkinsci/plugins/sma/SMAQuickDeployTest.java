@@ -0,0 +1,118 @@
+package org.jenkinsci.plugins.sma;
+
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SMAQuickDeployTest
+{
+    private File rootDir;
+    private SMADeployLedger ledger;
+    private SMAQuickDeploy quickDeploy;
+    private AtomicInteger deployments;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        rootDir = Files.createTempDir();
+        ledger = SMADeployLedger.forJob(rootDir, "user@example.com", "https://test.salesforce.com", "deploy");
+        ledger.recordValidation("abc", "RunLocalTests", "0Af000000000001");
+        quickDeploy = new SMAQuickDeploy(ledger, new PrintStream(new ByteArrayOutputStream()));
+        deployments = new AtomicInteger();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        FileUtils.deleteDirectory(rootDir);
+    }
+
+    @Test
+    public void testQuickDeploy() throws Exception
+    {
+        assertTrue(quickDeploy.deploy("0Af000000000001", result(true), deploy(false)));
+        assertTrue(quickDeploy.getQuickDeployed());
+        assertEquals(0, deployments.get());
+    }
+
+    @Test
+    public void testFailedQuickDeployFallsBack() throws Exception
+    {
+        // The org accepted the quick deploy, but it failed, e.g. because the validation was invalidated since
+        assertTrue(quickDeploy.deploy("0Af000000000001", result(false), deploy(true)));
+        assertFalse(quickDeploy.getQuickDeployed());
+        assertEquals(1, deployments.get());
+        assertNull(ledger.getValidation("abc", "RunLocalTests"));
+    }
+
+    @Test
+    public void testFallbackResult() throws Exception
+    {
+        assertFalse(quickDeploy.deploy("0Af000000000001", result(false), deploy(false)));
+        assertFalse(quickDeploy.getQuickDeployed());
+        assertEquals(1, deployments.get());
+    }
+
+    @Test
+    public void testUnknownOutcome() throws Exception
+    {
+        Callable<Boolean> timeout = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                throw new Exception("[SMA] Request timed out");
+            }
+        };
+
+        // The quick deploy may still be running, so the package is not deployed again
+        try {
+            quickDeploy.deploy("0Af000000000001", timeout, deploy(true));
+            fail();
+        } catch (Exception e) {
+            assertEquals(0, deployments.get());
+        }
+    }
+
+    @Test
+    public void testNoValidation() throws Exception
+    {
+        assertTrue(quickDeploy.deploy(null, result(true), deploy(true)));
+        assertFalse(quickDeploy.getQuickDeployed());
+        assertEquals(1, deployments.get());
+        assertEquals("0Af000000000001", ledger.getValidation("abc", "RunLocalTests"));
+    }
+
+    private static Callable<Boolean> result(final boolean success)
+    {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return success;
+            }
+        };
+    }
+
+    private Callable<Boolean> deploy(final boolean success)
+    {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                deployments.incrementAndGet();
+                return success;
+            }
+        };
+    }
+}
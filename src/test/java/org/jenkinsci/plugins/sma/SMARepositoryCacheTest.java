@@ -0,0 +1,111 @@
+package org.jenkinsci.plugins.sma;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class SMARepositoryCacheTest
+{
+    private File first, second;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        SMARepositoryCache.clear();
+        first = createRepository();
+        second = createRepository();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        SMARepositoryCache.setIdleTimeout(SMARepositoryCache.DEFAULT_IDLE_TIMEOUT);
+        SMARepositoryCache.clear();
+        FileUtils.deleteDirectory(first.getParentFile());
+        FileUtils.deleteDirectory(second.getParentFile());
+    }
+
+    @Test
+    public void testSharedRepository() throws Exception
+    {
+        Repository repository = SMARepositoryCache.acquire(first);
+        Repository shared = SMARepositoryCache.acquire(new File(first.getParentFile(), "./.git"));
+        Repository other = SMARepositoryCache.acquire(second);
+
+        assertSame(repository, shared);
+        assertNotSame(repository, other);
+        assertEquals(2, SMARepositoryCache.size());
+
+        SMARepositoryCache.release(repository);
+        SMARepositoryCache.release(shared);
+        SMARepositoryCache.release(other);
+
+        // Released repositories stay open for the next build until they idle out
+        assertEquals(2, SMARepositoryCache.size());
+        Repository reused = SMARepositoryCache.acquire(first);
+        assertSame(repository, reused);
+        SMARepositoryCache.release(reused);
+    }
+
+    @Test
+    public void testClearKeepsRepositoriesInUse() throws Exception
+    {
+        Repository inUse = SMARepositoryCache.acquire(first);
+        SMARepositoryCache.release(SMARepositoryCache.acquire(second));
+
+        SMARepositoryCache.clear();
+
+        assertEquals(1, SMARepositoryCache.size());
+        assertSame(inUse, SMARepositoryCache.acquire(first));
+        SMARepositoryCache.release(inUse);
+        SMARepositoryCache.release(inUse);
+    }
+
+    @Test
+    public void testCloseOnRelease() throws Exception
+    {
+        SMARepositoryCache.setIdleTimeout(0);
+
+        Repository repository = SMARepositoryCache.acquire(first);
+        Repository shared = SMARepositoryCache.acquire(first);
+        SMARepositoryCache.release(repository);
+        assertEquals(1, SMARepositoryCache.size());
+
+        SMARepositoryCache.release(shared);
+        assertEquals(0, SMARepositoryCache.size());
+    }
+
+    @Test
+    public void testRemovedWorkspace() throws Exception
+    {
+        Repository removed = SMARepositoryCache.acquire(first);
+        SMARepositoryCache.release(SMARepositoryCache.acquire(second));
+
+        FileUtils.deleteDirectory(first.getParentFile());
+        SMARepositoryCache.release(removed);
+
+        // Only the repository of the remaining workspace is kept for the next build
+        assertEquals(1, SMARepositoryCache.size());
+        assertNotSame(removed, SMARepositoryCache.acquire(second));
+    }
+
+    private File createRepository() throws Exception
+    {
+        File workspace = File.createTempFile("TestRepositoryCache", "");
+        workspace.delete();
+        Repository repository = FileRepositoryBuilder.create(new File(workspace, ".git"));
+        repository.create();
+        repository.close();
+
+        return new File(workspace, ".git");
+    }
+}
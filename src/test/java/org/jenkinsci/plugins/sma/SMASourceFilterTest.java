@@ -0,0 +1,46 @@
+package org.jenkinsci.plugins.sma;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SMASourceFilterTest
+{
+    @Test
+    public void testDefaultRootAtAnyDepth() throws Exception
+    {
+        SMASourceFilter filter = new SMASourceFilter(null);
+
+        assertNull(filter.getRoot());
+        assertTrue(filter.isSourcePath("src/classes/A.cls"));
+        assertTrue(filter.isSourcePath("force-app/src/classes/A.cls"));
+        assertTrue(filter.isSourcePath("project/nested/src/package.xml"));
+        assertFalse(filter.isSourcePath("README.md"));
+        assertFalse(filter.isSourcePath("mysrc/classes/A.cls"));
+        assertFalse(filter.isSourcePath("srcs/classes/A.cls"));
+        assertFalse(filter.isSourcePath("docs/src"));
+
+        assertTrue(filter.isSourceRoot("src"));
+        assertTrue(filter.isSourceRoot("force-app/src"));
+        assertFalse(filter.isSourceRoot("force-app/mysrc"));
+    }
+
+    @Test
+    public void testConfiguredRoot() throws Exception
+    {
+        SMASourceFilter filter = new SMASourceFilter(" /force-app/src/ ");
+
+        assertEquals("force-app/src", filter.getRoot());
+        assertTrue(filter.isSourcePath("force-app/src/classes/A.cls"));
+        assertFalse(filter.isSourcePath("src/classes/A.cls"));
+        assertFalse(filter.isSourcePath("build/force-app/src/classes/A.cls"));
+        assertTrue(filter.isSourceRoot("force-app/src"));
+        assertFalse(filter.isSourceRoot("src"));
+
+        assertNull(new SMASourceFilter("  ").getRoot());
+        assertEquals("project/src", new SMASourceFilter("project\\src").getRoot());
+    }
+}
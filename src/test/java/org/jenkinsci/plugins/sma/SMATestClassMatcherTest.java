@@ -0,0 +1,102 @@
+package org.jenkinsci.plugins.sma;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SMATestClassMatcherTest
+{
+    private Set<String> classNames;
+    private SMATestClassMatcher matcher;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        classNames = new LinkedHashSet<String>();
+        classNames.add("AccountService");
+        classNames.add("AccountServiceTest");
+        classNames.add("Test_AccountHelper");
+        classNames.add("AccountHelper");
+        classNames.add("ContactService");
+        classNames.add("ContactServiceTests");
+        classNames.add("Account");
+        matcher = new SMATestClassMatcher(classNames);
+    }
+
+    @Test
+    public void testFindSuffixedTest() throws Exception
+    {
+        String testRegex = ".*[T|t]est.*";
+
+        assertEquals("AccountServiceTest", matcher.findFirst("AccountService" + testRegex, "AccountService"));
+        assertEquals("ContactServiceTests", matcher.findFirst("ContactService" + testRegex, "ContactService"));
+        assertEquals("Test_AccountHelper", matcher.findFirst(testRegex + "AccountHelper", "AccountHelper"));
+        assertNull(matcher.findFirst("Opportunity" + testRegex, "Opportunity"));
+    }
+
+    @Test
+    public void testMatchesFullScan() throws Exception
+    {
+        Random random = new Random(42);
+        List<String> names = new ArrayList<String>();
+        String[] parts = { "Account", "Contact", "Lead", "Service", "Helper", "Test", "test", "_", "Util" };
+
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder name = new StringBuilder();
+            for (int j = 1 + random.nextInt(4); j > 0; j--) {
+                name.append(parts[random.nextInt(parts.length)]);
+            }
+            names.add(name.toString());
+        }
+        SMATestClassMatcher randomMatcher = new SMATestClassMatcher(new LinkedHashSet<String>(names));
+        Set<String> ordered = new LinkedHashSet<String>(names);
+        String[] testRegexes = { ".*[T|t]est.*", "Test", "_?[Tt]ests?$", "^Test_?" };
+
+        for (String className : ordered) {
+            for (String testRegex : testRegexes) {
+                assertTrue(SMATestClassMatcher.keepsLiteral(className, testRegex));
+
+                for (String regex : new String[] { className + testRegex, testRegex + className }) {
+                    String expected = SMAUtility.searchForTestClass(ordered, regex);
+
+                    assertEquals(regex, expected, randomMatcher.findFirst(regex, className));
+                    assertEquals(regex, expected, randomMatcher.findFirst(regex));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testKeepsLiteral() throws Exception
+    {
+        assertTrue(SMATestClassMatcher.keepsLiteral("Account", ".*[T|t]est.*"));
+        assertTrue(SMATestClassMatcher.keepsLiteral("Account", "(Test|Tests)"));
+        assertTrue(SMATestClassMatcher.keepsLiteral("Account", "\\w*Test"));
+
+        assertFalse(SMATestClassMatcher.keepsLiteral("Account", "|Test"));
+        assertFalse(SMATestClassMatcher.keepsLiteral("Account", "?Test"));
+        assertFalse(SMATestClassMatcher.keepsLiteral("Account", "Test\\"));
+        assertFalse(SMATestClassMatcher.keepsLiteral("Account", "(?i)test"));
+        assertFalse(SMATestClassMatcher.keepsLiteral("Account.*", "Test"));
+    }
+
+    @Test
+    public void testUnsafeRegexFallsBackToScan() throws Exception
+    {
+        // The alternation makes the class name optional, so this has to scan every name
+        assertEquals("AccountServiceTest", matcher.findFirst("Opportunity|ServiceTest"));
+    }
+
+    @Test
+    public void testCompileIsCached() throws Exception
+    {
+        assertSame(SMATestClassMatcher.compile(".*Test.*"), SMATestClassMatcher.compile(".*Test.*"));
+    }
+}
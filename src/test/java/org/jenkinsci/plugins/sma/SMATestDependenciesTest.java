@@ -0,0 +1,140 @@
+package org.jenkinsci.plugins.sma;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class SMATestDependenciesTest
+{
+    private SMATestDependencies dependencies;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        Map<String, SMAApexScanner.Result> classes = new HashMap<String, SMAApexScanner.Result>();
+        classes.put("TaxCalculator", SMAApexScanner.scan("public class TaxCalculator { }"));
+        classes.put("InvoiceService", SMAApexScanner.scan("public class InvoiceService { TaxCalculator calc; }"));
+        classes.put("InvoiceServiceTest", SMAApexScanner.scan(
+                "@isTest private class InvoiceServiceTest { static void run() { new InvoiceService(); } }"));
+        classes.put("TaxCalculatorTest", SMAApexScanner.scan(
+                "@isTest private class TaxCalculatorTest { static void run() { new taxcalculator(); } }"));
+        classes.put("OpportunityHandler", SMAApexScanner.scan("public class OpportunityHandler { }"));
+        classes.put("OpportunityTest", SMAApexScanner.scan(
+                "@isTest private class OpportunityTest { static void run() { insert new Opportunity(); } }"));
+        classes.put("UnrelatedTest", SMAApexScanner.scan("@isTest private class UnrelatedTest { }"));
+
+        Map<String, SMAApexScanner.Result> triggers = new HashMap<String, SMAApexScanner.Result>();
+        triggers.put("OpportunityTrigger", SMAApexScanner.scan(
+                "trigger OpportunityTrigger on Opportunity (before insert) { OpportunityHandler.handle(); }"));
+
+        dependencies = new SMATestDependencies(classes, triggers);
+    }
+
+    @Test
+    public void testTransitiveReferences() throws Exception
+    {
+        assertEquals(tests("InvoiceServiceTest", "TaxCalculatorTest"), dependencies.getTestsForClass("TaxCalculator"));
+        assertEquals(tests("InvoiceServiceTest"), dependencies.getTestsForClass("invoiceservice"));
+        assertEquals(tests("UnrelatedTest"), dependencies.getTestsForClass("UnrelatedTest"));
+    }
+
+    @Test
+    public void testTriggers() throws Exception
+    {
+        assertEquals(tests("OpportunityTest"), dependencies.getTestsForTrigger("OpportunityTrigger"));
+        assertEquals(tests("OpportunityTest"), dependencies.getTestsForClass("OpportunityHandler"));
+    }
+
+    @Test
+    public void testLocaleIndependentNames() throws Exception
+    {
+        Locale locale = Locale.getDefault();
+        try
+        {
+            // Lower casing INVOICESERVICE in Turkish yields a dotless i
+            Locale.setDefault(new Locale("tr", "TR"));
+            Map<String, SMAApexScanner.Result> classes = new HashMap<String, SMAApexScanner.Result>();
+            classes.put("InvoiceService", SMAApexScanner.scan("public class InvoiceService { }"));
+            classes.put("InvoiceTest", SMAApexScanner.scan(
+                    "@isTest private class InvoiceTest { static void run() { new INVOICESERVICE(); } }"));
+
+            SMATestDependencies graph = new SMATestDependencies(classes, new HashMap<String, SMAApexScanner.Result>());
+            assertEquals(tests("InvoiceTest"), graph.getTestsForClass("INVOICESERVICE"));
+        }
+        finally
+        {
+            Locale.setDefault(locale);
+        }
+    }
+
+    @Test
+    public void testIncrementalUpdate() throws Exception
+    {
+        File workspace = File.createTempFile("TestDependencies", "");
+        workspace.delete();
+        Repository repository = FileRepositoryBuilder.create(new File(workspace, ".git"));
+        repository.create();
+        File classes = new File(workspace, "src/classes");
+        classes.mkdirs();
+
+        try
+        {
+            writeFile(new File(classes, "TaxCalculator.cls"), "public class TaxCalculator { }");
+            writeFile(new File(classes, "OldService.cls"), "public class OldService { TaxCalculator calc; }");
+            writeFile(new File(classes, "OldServiceTest.cls"), "@isTest class OldServiceTest { OldService s; }");
+            new Git(repository).add().addFilepattern("src").call();
+            String firstSha = new Git(repository).commit().setMessage("First").call().getName();
+
+            SMAGit git = new SMAGit(workspace.getPath(), null, SMAGit.Mode.INI);
+            SMATestDependencies first = SMATestDependencies.forSource(git);
+            git.close();
+            assertEquals(tests("OldServiceTest"), first.getTestsForClass("TaxCalculator"));
+
+            // Delete the service, add a new one, and point the old test at the new service
+            new File(classes, "OldService.cls").delete();
+            writeFile(new File(classes, "NewService.cls"), "public class NewService { TaxCalculator calc; }");
+            writeFile(new File(classes, "NewServiceTest.cls"), "@isTest class NewServiceTest { NewService s; }");
+            new Git(repository).rm().addFilepattern("src/classes/OldService.cls").call();
+            new Git(repository).add().addFilepattern("src").call();
+            new Git(repository).commit().setMessage("Second").call();
+
+            git = new SMAGit(workspace.getPath(), firstSha, SMAGit.Mode.STD);
+            SMATestDependencies second = SMATestDependencies.forSource(git);
+            git.close();
+
+            assertEquals(tests("NewServiceTest"), second.getTestsForClass("TaxCalculator"));
+            assertEquals(tests("OldServiceTest"), second.getTestsForClass("OldServiceTest"));
+        }
+        finally
+        {
+            repository.close();
+            FileUtils.deleteDirectory(workspace);
+        }
+    }
+
+    private void writeFile(File file, String content) throws Exception
+    {
+        PrintWriter out = new PrintWriter(file);
+        out.print(content);
+        out.close();
+    }
+
+    private Set<String> tests(String... names)
+    {
+        return new HashSet<String>(Arrays.asList(names));
+    }
+}
@@ -1,10 +1,16 @@
 package org.jenkinsci.plugins.sma;
 
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 
+import java.io.File;
 import java.util.Map;
 import java.util.Set;
 
@@ -13,9 +19,13 @@ import java.util.Set;
  */
 public class SMATestManifestReaderTest {
     private Map<String, Set<String>> mapping;
+    private File manifest;
 
     @Before
     public void setUp() throws Exception {
+        SMATestManifestReader.clear();
+        manifest = File.createTempFile("SMAManifest", ".xml");
+
         SMATestManifestReader reader = new SMATestManifestReader("SMAManifest.xml");
         this.mapping = reader.getClassMapping();
     }
@@ -37,4 +47,69 @@ public class SMATestManifestReaderTest {
         assertEquals(true, mapping.containsKey("test4"));
         assertEquals(0, mapping.get("test4").size());
     }
+
+    @After
+    public void tearDown() throws Exception {
+        SMATestManifestReader.clear();
+        manifest.delete();
+    }
+
+    @Test
+    public void testListValues() throws Exception {
+        writeManifest("<mappings><tests>TST_a, TST_b,</tests><class>test5</class><tests>TST_c\\,d</tests></mappings>");
+
+        Map<String, Set<String>> fileMapping = new SMATestManifestReader(manifest.getPath()).getClassMapping();
+
+        assertEquals(3, fileMapping.get("test5").size());
+        assertEquals(true, fileMapping.get("test5").contains("TST_b"));
+        assertEquals(true, fileMapping.get("test5").contains("TST_c,d"));
+    }
+
+    @Test
+    public void testUnchangedManifestIsCached() throws Exception {
+        writeManifest("<mappings><class>test5</class><tests>TST_a</tests></mappings>");
+        Map<String, Set<String>> first = new SMATestManifestReader(manifest.getPath()).getClassMapping();
+
+        assertSame(first, new SMATestManifestReader(manifest.getPath()).getClassMapping());
+
+        // Touching the file without changing it is caught by the content hash
+        manifest.setLastModified(manifest.lastModified() - 10000);
+        assertSame(first, new SMATestManifestReader(manifest.getPath()).getClassMapping());
+
+        writeManifest("<mappings><class>test5</class><tests>TST_b</tests></mappings>");
+        manifest.setLastModified(manifest.lastModified() - 20000);
+        Map<String, Set<String>> changed = new SMATestManifestReader(manifest.getPath()).getClassMapping();
+
+        assertNotSame(first, changed);
+        assertEquals(true, changed.get("test5").contains("TST_b"));
+    }
+
+    @Test
+    public void testPatternMappings() throws Exception {
+        writeManifest("<mappings><class>AccountService</class><tests>TST_AccountService</tests></mappings>"
+                + "<mappings><class>Account*Service</class><tests>TST_AccountServices</tests></mappings>"
+                + "<mappings><class>ns__*</class><tests>TST_Namespace</tests></mappings>");
+        SMATestManifestReader reader = new SMATestManifestReader(manifest.getPath());
+
+        assertEquals(1, reader.getClassMapping().size());
+        assertEquals(2, reader.getTestsForClass("AccountService").size());
+        assertEquals(true, reader.getTestsForClass("AccountSharingService").contains("TST_AccountServices"));
+        assertEquals(true, reader.getTestsForClass("ns__Helper").contains("TST_Namespace"));
+        assertEquals(0, reader.getTestsForClass("ContactService").size());
+    }
+
+    @Test(expected = ConfigurationException.class)
+    public void testMissingManifest() throws Exception {
+        new SMATestManifestReader(new File(manifest.getParentFile(), "missing-SMAManifest.xml").getPath());
+    }
+
+    @Test(expected = ConfigurationException.class)
+    public void testMalformedManifest() throws Exception {
+        FileUtils.writeStringToFile(manifest, "<Config><mappings><class>test5</class></Config>", "UTF-8");
+        new SMATestManifestReader(manifest.getPath());
+    }
+
+    private void writeManifest(String mappings) throws Exception {
+        FileUtils.writeStringToFile(manifest, "<?xml version=\"1.0\" ?>\n<Config>" + mappings + "</Config>", "UTF-8");
+    }
 }
@@ -1,22 +1,28 @@
 package org.jenkinsci.plugins.sma;
 
 import com.google.common.io.Files;
+import org.apache.commons.io.IOUtils;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 public class SMAUtilityTest
 {
     File localPath;
-    Map<String, byte[]> metadata;
+    Map<String, SMABlob> metadata;
     SMAPackage packageManifest;
     SMAPackage destructiveChange;
 
@@ -27,13 +33,13 @@ public class SMAUtilityTest
 
         String[] strings = {"TestContents", "TestXML"};
 
-        metadata = new HashMap<String, byte[]>();
-        metadata.put("classes/TestApex.cls", strings[0].getBytes());
-        metadata.put("classes/TestApex.cls-meta.xml", strings[1].getBytes());
-        metadata.put("pages/TestPages.page", strings[0].getBytes());
-        metadata.put("pages/TestPages.page-meta.xml", strings[1].getBytes());
-        metadata.put("triggers/TestTrigger.trigger", strings[0].getBytes());
-        metadata.put("triggers/TestTrigger.trigger-meta.xml", strings[1].getBytes());
+        metadata = new HashMap<String, SMABlob>();
+        metadata.put("classes/TestApex.cls", new SMABlob(strings[0].getBytes()));
+        metadata.put("classes/TestApex.cls-meta.xml", new SMABlob(strings[1].getBytes()));
+        metadata.put("pages/TestPages.page", new SMABlob(strings[0].getBytes()));
+        metadata.put("pages/TestPages.page-meta.xml", new SMABlob(strings[1].getBytes()));
+        metadata.put("triggers/TestTrigger.trigger", new SMABlob(strings[0].getBytes()));
+        metadata.put("triggers/TestTrigger.trigger-meta.xml", new SMABlob(strings[1].getBytes()));
         
         List<SMAMetadata> metadataList = new ArrayList<SMAMetadata>();
         
@@ -49,6 +55,26 @@ public class SMAUtilityTest
         destructiveChange = new SMAPackage(metadataList, true);
     }
 
+    private List<String> readZip(SMAZip zip) throws Exception
+    {
+        List<String> entries = new ArrayList<String>();
+        ZipInputStream zis = new ZipInputStream(zip.openStream());
+        try
+        {
+            ZipEntry entry;
+            while (null != (entry = zis.getNextEntry()))
+            {
+                entries.add(entry.getName() + "=" + new String(IOUtils.toByteArray(zis)));
+            }
+        }
+        finally
+        {
+            zis.close();
+            zip.close();
+        }
+        return entries;
+    }
+
     @After
     public void tearDown() throws Exception
     {
@@ -58,26 +84,79 @@ public class SMAUtilityTest
     @Test
     public void testZipPackage() throws Exception
     {
-        ByteArrayOutputStream testStream = new ByteArrayOutputStream();
+        SMAZip testZip = SMAUtility.zipPackage(metadata, packageManifest, destructiveChange);
+
+        Assert.assertNotNull(testZip);
+        Assert.assertTrue(testZip.getFile().exists());
+        Assert.assertEquals(metadata.size() + 2, readZip(testZip).size());
+        Assert.assertFalse(testZip.getFile().exists());
+    }
 
-        testStream = SMAUtility.zipPackage(metadata, packageManifest, destructiveChange);
+    @Test
+    public void testZipPackageParallel() throws Exception
+    {
+        for (int i = 0; i < 200; i++)
+        {
+            metadata.put("classes/Generated" + i + ".cls", new SMABlob(("Generated " + i).getBytes()));
+        }
 
-        System.out.println(testStream);
+        List<String> sequential = readZip(SMAUtility.zipPackage(metadata, packageManifest, destructiveChange));
+        List<String> parallel = readZip(SMAUtility.zipPackage(metadata, packageManifest, destructiveChange, 4));
 
-        Assert.assertNotNull(testStream);
+        Assert.assertEquals(metadata.size() + 2, sequential.size());
+        Assert.assertEquals(sequential, parallel);
     }
 
     @Test
-    public void testWriteZip() throws Exception
+    public void testZipPackageReproducible() throws Exception
     {
-        ByteArrayOutputStream testStream = new ByteArrayOutputStream();
+        List<String> names = new ArrayList<String>(metadata.keySet());
+        Collections.sort(names, Collections.reverseOrder());
+        Map<String, SMABlob> reordered = new LinkedHashMap<String, SMABlob>();
+        for (String name : names)
+        {
+            reordered.put(name, metadata.get(name));
+        }
+        List<SMAMetadata> members = new ArrayList<SMAMetadata>(packageManifest.getContents());
+        Collections.reverse(members);
+
+        SMAZip first = SMAUtility.zipPackage(metadata, packageManifest, destructiveChange);
+        SMAZip second = SMAUtility.zipPackage(reordered, new SMAPackage(members, false),
+                new SMAPackage(members, true), 4);
+        try
+        {
+            Assert.assertEquals(64, first.getHash().length());
+            Assert.assertEquals(first.getHash(), second.getHash());
+            Assert.assertArrayEquals(first.getBytes(), second.getBytes());
+        }
+        finally
+        {
+            first.close();
+            second.close();
+        }
+    }
 
-        testStream = SMAUtility.zipPackage(metadata, packageManifest, destructiveChange);
+    @Test
+    public void testWriteZip() throws Exception
+    {
+        SMAZip testZip = SMAUtility.zipPackage(metadata, packageManifest, destructiveChange);
 
-        SMAUtility.writeZip(testStream, localPath.getPath() + "/streamToZip.zip");
+        SMAUtility.writeZip(testZip, localPath.getPath() + "/streamToZip.zip");
 
         File zipFile = new File(localPath.getPath() + "/streamToZip.zip");
 
         Assert.assertTrue(zipFile.exists());
+        Assert.assertEquals(testZip.length(), zipFile.length());
+
+        InputStream written = new FileInputStream(zipFile);
+        try
+        {
+            Assert.assertArrayEquals(testZip.getBytes(), IOUtils.toByteArray(written));
+        }
+        finally
+        {
+            written.close();
+            testZip.close();
+        }
     }
 }
@@ -0,0 +1,49 @@
+package org.jenkinsci.plugins.sma;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SMAWindowCacheTest
+{
+    @After
+    public void tearDown() throws Exception
+    {
+        // Put back the JGit defaults for the rest of the tests in this JVM
+        SMAWindowCache.reset();
+    }
+
+    @Test
+    public void testInstallOnlyOnChange() throws Exception
+    {
+        assertTrue(SMAWindowCache.configure(true, 1024, 64, 32, 256));
+        assertTrue(!SMAWindowCache.configure(true, 1024, 64, 32, 256));
+        assertTrue(SMAWindowCache.configure(false, 1024, 64, 32, 256));
+    }
+
+    @Test
+    public void testResetOnlyWhenTuned() throws Exception
+    {
+        assertFalse(SMAWindowCache.reset());
+
+        SMAWindowCache.configure(true, 1024, 64, 32, 256);
+        assertTrue(SMAWindowCache.reset());
+        assertNull(SMAWindowCache.getInstalled());
+        assertFalse(SMAWindowCache.reset());
+
+        // Tuning again after a reset installs the settings even if they did not change
+        assertTrue(SMAWindowCache.configure(true, 1024, 64, 32, 256));
+    }
+
+    @Test
+    public void testWindowSizeRounding() throws Exception
+    {
+        SMAWindowCache.configure(true, 100, 64, 32, 256);
+
+        assertTrue(SMAWindowCache.getInstalled().contains("window 64 KiB"));
+        assertTrue(SMAWindowCache.getStatistics().startsWith("Pack window cache: "));
+    }
+}
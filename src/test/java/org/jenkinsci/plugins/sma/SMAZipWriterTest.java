@@ -0,0 +1,233 @@
+package org.jenkinsci.plugins.sma;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SMAZipWriterTest
+{
+    private File file;
+    private Map<String, byte[]> bodies;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        file = File.createTempFile("SMAZipWriterTest", ".zip");
+        bodies = new LinkedHashMap<String, byte[]>();
+        Random random = new Random(22);
+
+        StringBuilder apex = new StringBuilder();
+        for (int i = 0; i < 200; i++)
+        {
+            apex.append("public class Generated").append(i).append(" { }\n");
+        }
+        bodies.put("classes/Generated.cls", apex.toString().getBytes("UTF-8"));
+        bodies.put("classes/Empty.cls", new byte[0]);
+
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+        gzip.write(apex.toString().getBytes("UTF-8"));
+        gzip.close();
+        bodies.put("staticresources/Bundle.resource", gzipped.toByteArray());
+
+        byte[] image = new byte[64 * 1024];
+        random.nextBytes(image);
+        image[0] = (byte) 0x89; image[1] = 'P'; image[2] = 'N'; image[3] = 'G';
+        bodies.put("staticresources/Logo.resource", image);
+
+        StringBuilder large = new StringBuilder();
+        while (large.length() < 3 * 1024 * 1024)
+        {
+            large.append("<label>").append(large.length()).append("</label>\n");
+        }
+        bodies.put("labels/CustomLabels.labels", large.toString().getBytes("UTF-8"));
+
+        byte[] largeZip = new byte[2 * 1024 * 1024 + 7];
+        random.nextBytes(largeZip);
+        largeZip[0] = 'P'; largeZip[1] = 'K'; largeZip[2] = 3; largeZip[3] = 4;
+        bodies.put("staticresources/Library.resource", largeZip);
+
+        for (int i = 0; i < 100; i++)
+        {
+            bodies.put("classes/Small" + i + ".cls", ("public class Small" + i + " {}").getBytes("UTF-8"));
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        file.delete();
+    }
+
+    private void write(int level, int threads, boolean streams) throws Exception
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        SMAZipWriter writer = new SMAZipWriter(out.getChannel(), level, threads);
+        try
+        {
+            for (Map.Entry<String, byte[]> body : bodies.entrySet())
+            {
+                if (streams)
+                {
+                    writer.add(body.getKey(), new ByteArrayInputStream(body.getValue()));
+                }
+                else
+                {
+                    writer.add(body.getKey(), body.getValue());
+                }
+            }
+            writer.finish();
+        }
+        finally
+        {
+            writer.close();
+            out.close();
+        }
+    }
+
+    private Map<String, Integer> readWithZipFile() throws Exception
+    {
+        Map<String, Integer> methods = new LinkedHashMap<String, Integer>();
+        ZipFile zip = new ZipFile(file);
+        try
+        {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements())
+            {
+                ZipEntry entry = entries.nextElement();
+                InputStream in = zip.getInputStream(entry);
+                try
+                {
+                    assertArrayEquals(entry.getName(), bodies.get(entry.getName()), IOUtils.toByteArray(in));
+                }
+                finally
+                {
+                    in.close();
+                }
+                methods.put(entry.getName(), entry.getMethod());
+            }
+        }
+        finally
+        {
+            zip.close();
+        }
+        return methods;
+    }
+
+    private List<String> readWithZipInputStream() throws Exception
+    {
+        List<String> names = new ArrayList<String>();
+        ZipInputStream zis = new ZipInputStream(new FileInputStream(file));
+        try
+        {
+            ZipEntry entry;
+            while (null != (entry = zis.getNextEntry()))
+            {
+                assertArrayEquals(entry.getName(), bodies.get(entry.getName()), IOUtils.toByteArray(zis));
+                names.add(entry.getName());
+            }
+        }
+        finally
+        {
+            zis.close();
+        }
+        return names;
+    }
+
+    @Test
+    public void testStoresCompressedBodies() throws Exception
+    {
+        write(6, 4, true);
+
+        Map<String, Integer> methods = readWithZipFile();
+
+        assertEquals(new ArrayList<String>(bodies.keySet()), new ArrayList<String>(methods.keySet()));
+        assertEquals(new ArrayList<String>(bodies.keySet()), readWithZipInputStream());
+        assertEquals(ZipEntry.DEFLATED, (int) methods.get("classes/Generated.cls"));
+        assertEquals(ZipEntry.DEFLATED, (int) methods.get("labels/CustomLabels.labels"));
+        assertEquals(ZipEntry.STORED, (int) methods.get("classes/Empty.cls"));
+        assertEquals(ZipEntry.STORED, (int) methods.get("staticresources/Bundle.resource"));
+        assertEquals(ZipEntry.STORED, (int) methods.get("staticresources/Logo.resource"));
+        assertEquals(ZipEntry.STORED, (int) methods.get("staticresources/Library.resource"));
+    }
+
+    @Test
+    public void testParallelMatchesSequential() throws Exception
+    {
+        write(6, 1, false);
+        byte[] sequential = FileUtils.readFileToByteArray(file);
+        readWithZipFile();
+
+        write(6, 4, false);
+        assertArrayEquals(sequential, FileUtils.readFileToByteArray(file));
+        readWithZipFile();
+
+        write(6, 4, true);
+        assertArrayEquals(sequential, FileUtils.readFileToByteArray(file));
+    }
+
+    @Test
+    public void testLargeBodyInMemory() throws Exception
+    {
+        // Incompressible and without a known header, so only the streamed path deflates it
+        byte[] noise = new byte[2 * 1024 * 1024 + 3];
+        new Random(23).nextBytes(noise);
+        noise[0] = 'x';
+        bodies.put("documents/Noise.bin", noise);
+
+        write(6, 1, true);
+        byte[] streamed = FileUtils.readFileToByteArray(file);
+        assertEquals(ZipEntry.DEFLATED, (int) readWithZipFile().get("documents/Noise.bin"));
+
+        write(6, 4, false);
+        assertArrayEquals(streamed, FileUtils.readFileToByteArray(file));
+        assertEquals(new ArrayList<String>(bodies.keySet()), readWithZipInputStream());
+    }
+
+    @Test
+    public void testLevels() throws Exception
+    {
+        write(0, 2, true);
+        long stored = file.length();
+        assertFalse(readWithZipFile().containsValue(ZipEntry.DEFLATED));
+
+        write(1, 2, true);
+        long fast = file.length();
+        readWithZipFile();
+
+        write(9, 2, true);
+        long best = file.length();
+        readWithZipFile();
+
+        assertTrue(fast < stored);
+        assertTrue(best <= fast);
+    }
+
+    @Test
+    public void testIsCompressed() throws Exception
+    {
+        assertTrue(SMAZipWriter.isCompressed(new byte[] { 'P', 'K', 3, 4, 0 }, 5));
+        assertTrue(SMAZipWriter.isCompressed(new byte[] { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF }, 3));
+        assertFalse(SMAZipWriter.isCompressed(new byte[] { 'P', 'K' }, 2));
+        assertFalse(SMAZipWriter.isCompressed("public class A {}".getBytes("UTF-8"), 17));
+    }
+}